@@ -0,0 +1,56 @@
+package calibration;
+
+
+/**
+ * One analysis of calibration profiles, e.g. OP detection or the acceleration throttle,
+ * that can be run by a CalibrationPipeline together with other analyses on a single read
+ * of the data file.
+ *
+ * Each profile is first analyzed on its own by analyzeOne(), possibly on several threads at
+ * once, and its result is then applied to the analysis with apply(), in profile order. When
+ * all profiles are in, finish() works out the calibration parameters.
+ *
+ * @param <R> - what one profile adds to the analysis
+ */
+public interface AnalysisStage<R> {
+
+    /**
+     * Return a short name of the analysis, e.g. "OP".
+     */
+    String name();
+
+    /**
+     * Return the name of the file the parameters are written to.
+     */
+    String outFile();
+
+    /**
+     * Return the version of the analysis and the settings its parameters depend on,
+     * e.g. thresholds. Results are only reused from a ResultCache if this is the same.
+     */
+    String config();
+
+    /**
+     * Analyze one profile. Must only look at the profile, not the state of the analysis.
+     * @param profile - the profile
+     * @param problem - why the profile is not valid, or null if it is, see ProfileValidator
+     * @return        - what the profile adds to the analysis
+     */
+    R analyzeOne(CalibProfile profile, String problem);
+
+    /**
+     * Add the result of one profile to the analysis, called in profile order.
+     */
+    void apply(R result);
+
+    /**
+     * Consider the profiles applied so far as a whole and work out the parameters.
+     * @return - true if all of the profiles were valid
+     */
+    boolean finish();
+
+    /**
+     * Return the parameters worked out by finish(), as written to the parameter file.
+     */
+    String parameters();
+}
@@ -0,0 +1,156 @@
+package calibration;
+
+import java.util.Arrays;
+
+
+/**
+ * Fits many series at once, e.g. a line per profile, per side and per direction.
+ *
+ * The series are packed one after the other into a single x array and a single y array.
+ * offsets has one more entry than there are series, series s is points offsets[s] up to
+ * offsets[s+1]-1. The results of all series come back in one flat array, series s at
+ * s*width, in the same order as the List<Double> of the single series fits. Nothing is
+ * printed and nothing is allocated per series.
+ *
+ * The sums run over four independent lanes, so the loops are not held up waiting for each
+ * addition in turn, and are combined at the end of each series.
+ */
+public class BatchRegression {
+
+    static final int LINEAR_WIDTH = 3;      // R^2, beta0, beta1
+    static final int LANES        = 4;
+
+
+    /**
+     * Fit y = beta0 + beta1 x to every series.
+     * @param x       - x of all series, packed
+     * @param y       - y of all series, packed
+     * @param offsets - start of each series, and the end of the last one
+     * @return        - R^2, beta0, beta1 of each series
+     */
+    public static double[] linRegression(double[] x, double[] y, int[] offsets) {
+        double[] results = new double[LINEAR_WIDTH * (offsets.length - 1)];
+        linRegression(x, y, offsets, results);
+        return results;
+    }
+
+    /**
+     * Fit y = beta0 + beta1 x to every series, into a results array of LINEAR_WIDTH per series.
+     */
+    public static void linRegression(double[] x, double[] y, int[] offsets, double[] results) {
+
+        int numSeries = offsets.length - 1;
+        for (int s = 0; s < numSeries; s++) {
+            CalibrationEvents.RegressionFit event = new CalibrationEvents.RegressionFit();
+            event.begin();
+            int from = offsets[s];
+            int to   = offsets[s+1];
+            int n    = to - from;
+            int lanesEnd = from + (n / LANES) * LANES;
+
+            // first pass: means
+            double sumx0 = 0.0, sumx1 = 0.0, sumx2 = 0.0, sumx3 = 0.0;
+            double sumy0 = 0.0, sumy1 = 0.0, sumy2 = 0.0, sumy3 = 0.0;
+            int i = from;
+            for ( ; i < lanesEnd; i += LANES) {
+                sumx0 += x[i];   sumy0 += y[i];
+                sumx1 += x[i+1]; sumy1 += y[i+1];
+                sumx2 += x[i+2]; sumy2 += y[i+2];
+                sumx3 += x[i+3]; sumy3 += y[i+3];
+            }
+            for ( ; i < to; i++) {
+                sumx0 += x[i];   sumy0 += y[i];
+            }
+            double xbar = ((sumx0 + sumx1) + (sumx2 + sumx3)) / n;
+            double ybar = ((sumy0 + sumy1) + (sumy2 + sumy3)) / n;
+
+            // second pass: centered summary statistics
+            double xx0 = 0.0, xx1 = 0.0, xx2 = 0.0, xx3 = 0.0;
+            double yy0 = 0.0, yy1 = 0.0, yy2 = 0.0, yy3 = 0.0;
+            double xy0 = 0.0, xy1 = 0.0, xy2 = 0.0, xy3 = 0.0;
+            for (i = from; i < lanesEnd; i += LANES) {
+                double dx0 = x[i]   - xbar, dy0 = y[i]   - ybar;
+                double dx1 = x[i+1] - xbar, dy1 = y[i+1] - ybar;
+                double dx2 = x[i+2] - xbar, dy2 = y[i+2] - ybar;
+                double dx3 = x[i+3] - xbar, dy3 = y[i+3] - ybar;
+                xx0 += dx0 * dx0; yy0 += dy0 * dy0; xy0 += dx0 * dy0;
+                xx1 += dx1 * dx1; yy1 += dy1 * dy1; xy1 += dx1 * dy1;
+                xx2 += dx2 * dx2; yy2 += dy2 * dy2; xy2 += dx2 * dy2;
+                xx3 += dx3 * dx3; yy3 += dy3 * dy3; xy3 += dx3 * dy3;
+            }
+            for ( ; i < to; i++) {
+                double dx0 = x[i] - xbar, dy0 = y[i] - ybar;
+                xx0 += dx0 * dx0; yy0 += dy0 * dy0; xy0 += dx0 * dy0;
+            }
+            double xxbar = (xx0 + xx1) + (xx2 + xx3);
+            double yybar = (yy0 + yy1) + (yy2 + yy3);
+            double xybar = (xy0 + xy1) + (xy2 + xy3);
+
+            double beta1 = xybar / xxbar;
+            double beta0 = ybar - beta1 * xbar;
+            // regression sum of squares over total sum of squares
+            double R2    = (beta1 * xybar) / yybar;
+
+            int r = LINEAR_WIDTH * s;
+            results[r]   = R2;
+            results[r+1] = beta0;
+            results[r+2] = beta1;
+            event.record("batch-linear", 1, n, R2);
+        }
+    }
+
+    /**
+     * Fit a polynomial of the given degree to every series.
+     * @return - R^2 followed by the degree+1 coefficients of each series, see PolynomialFitter
+     */
+    public static double[] polyRegression(double[] x, double[] y, int[] offsets, int degree) {
+
+        int width = degree + 2;
+        int numSeries = offsets.length - 1;
+        double[] results = new double[width * numSeries];
+        PolynomialFitter fitter = new PolynomialFitter(degree);
+        for (int s = 0; s < numSeries; s++) {
+            fitter.fit(x, y, offsets[s], offsets[s+1]);
+            results[width * s] = fitter.rSquared;
+            System.arraycopy(fitter.coefficients, 0, results, width * s + 1, degree + 1);
+        }
+        return results;
+    }
+
+    /**
+     * Pack series into one array.
+     * @param series - the series
+     * @param offsets - filled with the start of each series and the end of the last, length series.length+1
+     * @return        - all series, one after the other
+     */
+    public static double[] pack(double[][] series, int[] offsets) {
+        int total = 0;
+        for (int s = 0; s < series.length; s++) {
+            offsets[s] = total;
+            total += series[s].length;
+        }
+        offsets[series.length] = total;
+        double[] packed = new double[total];
+        for (int s = 0; s < series.length; s++) {
+            System.arraycopy(series[s], 0, packed, offsets[s], series[s].length);
+        }
+        return packed;
+    }
+
+
+    /**
+     * Fits the LinearRegression sample data as two series, all of it and its first four points.
+     */
+    public static void main(String[] args) {
+        double[] x = new double[]{-3, -2, -1, 0, 1, 2, 3};
+        double[] y = new double[]{7.5, 3, 0.5, 1, 3, 6, 14};
+        int[] offsets = new int[3];
+        double[] xs = pack(new double[][]{x, Arrays.copyOf(x, 4)}, offsets);
+        double[] ys = pack(new double[][]{y, Arrays.copyOf(y, 4)}, offsets);
+        double[] results = linRegression(xs, ys, offsets);
+        for (int s = 0; s < offsets.length - 1; s++) {
+            System.out.printf("series %d: y = %f x + %f, R^2 = %f\n", s,
+                              results[LINEAR_WIDTH*s+2], results[LINEAR_WIDTH*s+1], results[LINEAR_WIDTH*s]);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package calibration;
+
+import java.util.Arrays;
+
+
+/**
+ * Growable primitive columns of calibration data points, used to build a CalibProfile
+ * without creating a CalibPoint object per point.
+ *
+ * The arrays may be longer than numPoints, only the first numPoints entries are used.
+ */
+public class CalibColumns {
+
+    static final int INITIAL_CAPACITY = 64;
+
+    int      numPoints;
+    double[] timeStamps;
+    int[]    leftEncoders;
+    int[]    rightEncoders;
+    double[] leftVelocities;
+    double[] rightVelocities;
+
+    public CalibColumns() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /*
+     * Primary class constructor.
+     */
+    public CalibColumns(int capacity) {
+        this.numPoints       = 0;
+        this.timeStamps      = new double[capacity];
+        this.leftEncoders    = new int   [capacity];
+        this.rightEncoders   = new int   [capacity];
+        this.leftVelocities  = new double[capacity];
+        this.rightVelocities = new double[capacity];
+    }
+
+    /**
+     * Append a point.
+     */
+    public void add(double timeStamp, int leftEncoder, int rightEncoder, double leftVelocity, double rightVelocity) {
+        if (numPoints == timeStamps.length) {
+            grow();
+        }
+        timeStamps[numPoints]      = timeStamp;
+        leftEncoders[numPoints]    = leftEncoder;
+        rightEncoders[numPoints]   = rightEncoder;
+        leftVelocities[numPoints]  = leftVelocity;
+        rightVelocities[numPoints] = rightVelocity;
+        numPoints++;
+    }
+
+    /**
+     * Append the point of the last row decoded by a CalibRowDecoder.
+     */
+    public void add(CalibRowDecoder decoder) {
+        add(decoder.timeStamp, decoder.leftEncoder, decoder.rightEncoder, decoder.leftVelocity, decoder.rightVelocity);
+    }
+
+    private void grow() {
+        int capacity = Math.max(INITIAL_CAPACITY, timeStamps.length * 2);
+        timeStamps      = Arrays.copyOf(timeStamps,      capacity);
+        leftEncoders    = Arrays.copyOf(leftEncoders,    capacity);
+        rightEncoders   = Arrays.copyOf(rightEncoders,   capacity);
+        leftVelocities  = Arrays.copyOf(leftVelocities,  capacity);
+        rightVelocities = Arrays.copyOf(rightVelocities, capacity);
+    }
+}
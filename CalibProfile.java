@@ -1,14 +1,25 @@
 package calibration;  
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Class to hold a calibration data point.
+ *
+ * The points are held as primitive columns (timeStamps, leftEncoders, ...), of which
+ * only the first numPoints entries are used. calibPoints is a read-only view of the
+ * same data as CalibPoint objects, which are made as they are asked for.
  */
 public class CalibProfile {
 
     List<CalibPoint> calibPoints;
+    int              numPoints;
+    double[]         timeStamps;
+    int[]            leftEncoders;
+    int[]            rightEncoders;
+    double[]         leftVelocities;
+    double[]         rightVelocities;
     double           nominalPower;
     double           accelerationThrottle;
     double           batteryVoltage;
@@ -19,6 +30,18 @@ public class CalibProfile {
     double           rightMeasure2;
     List<Double>     linearRegressionParameters;
     
+    // Validity of the profile, worked out by the parser as it is read or else by
+    // ProfileValidator when first asked. When the profile is invalid, the rows stop
+    // at invalidIdx, the first row that is out of order.
+    static final int UNCHECKED                    = 0;
+    static final int VALID                        = 1;
+    static final int TIME_NOT_INCREASING          = 2;
+    static final int LEFT_ENCODER_NOT_INCREASING  = 3;
+    static final int RIGHT_ENCODER_NOT_INCREASING = 4;
+    
+    int              validity = UNCHECKED;
+    int              invalidIdx = -1;
+    
     public CalibProfile(List<CalibPoint> calibPoints, double nominalPower, double batteryVoltage) {
         this(calibPoints, nominalPower, 1.0, batteryVoltage, "LR", 0.0, 0.0, 0.0, 0.0);
     }
@@ -27,13 +50,29 @@ public class CalibProfile {
         this(calibPoints, nominalPower, 1.0, batteryVoltage, "LR", leftMeasure1, rightMeasure1, 0.0, 0.0);
     }
     
+    public CalibProfile(List<CalibPoint> calibPoints, double nominalPower, double accelerationThrottle, double batteryVoltage, String sequence,
+                        double leftMeasure1, double rightMeasure1, double leftMeasure2, double rightMeasure2) {
+        this(toColumns(calibPoints), nominalPower, accelerationThrottle, batteryVoltage, sequence,
+             leftMeasure1, rightMeasure1, leftMeasure2, rightMeasure2);
+    }
+    
+    public CalibProfile(CalibColumns columns, double nominalPower, double batteryVoltage) {
+        this(columns, nominalPower, 1.0, batteryVoltage, "LR", 0.0, 0.0, 0.0, 0.0);
+    }
+    
     /*
      * Primary class constructor.
+     * The column arrays are taken over by the profile, not copied.
      */
-    public CalibProfile(List<CalibPoint> calibPoints, double nominalPower, double accelerationThrottle, double batteryVoltage, String sequence,
+    public CalibProfile(CalibColumns columns, double nominalPower, double accelerationThrottle, double batteryVoltage, String sequence,
                         double leftMeasure1, double rightMeasure1, double leftMeasure2, double rightMeasure2) {
-        this.calibPoints    = new ArrayList<>();
-        this.calibPoints.addAll(calibPoints);
+        this.numPoints       = columns.numPoints;
+        this.timeStamps      = columns.timeStamps;
+        this.leftEncoders    = columns.leftEncoders;
+        this.rightEncoders   = columns.rightEncoders;
+        this.leftVelocities  = columns.leftVelocities;
+        this.rightVelocities = columns.rightVelocities;
+        this.calibPoints     = new PointView();
         this.nominalPower   = nominalPower;
         this.accelerationThrottle = accelerationThrottle;
         this.batteryVoltage = batteryVoltage;
@@ -44,4 +83,30 @@ public class CalibProfile {
         this.rightMeasure2  = rightMeasure2;
         this.linearRegressionParameters = new ArrayList<>();
     }        
+    
+    private static CalibColumns toColumns(List<CalibPoint> calibPoints) {
+        CalibColumns columns = new CalibColumns(Math.max(1, calibPoints.size()));
+        for (CalibPoint cp : calibPoints) {
+            columns.add(cp.timeStamp, cp.leftEncoder, cp.rightEncoder, cp.leftVelocity, cp.rightVelocity);
+        }
+        return columns;
+    }
+    
+    /**
+     * CalibPoint view of the columns.
+     */
+    private class PointView extends AbstractList<CalibPoint> {
+        @Override
+        public CalibPoint get(int index) {
+            if ((index < 0) || (index >= numPoints)) {
+                throw new IndexOutOfBoundsException("Index: "+index+", Size: "+numPoints);
+            }
+            return new CalibPoint(timeStamps[index], leftEncoders[index], rightEncoders[index], leftVelocities[index], rightVelocities[index]);
+        }
+        
+        @Override
+        public int size() {
+            return numPoints;
+        }
+    }
 }
@@ -0,0 +1,295 @@
+package calibration;
+
+
+/**
+ * Line at a time parser for calibration data files.
+ *
+ * Holds the header values seen so far (battery voltage, nominal power, sequence, ...) and
+ * the points of the profile being acquired. Each line is handed to parseLine, which returns
+ * the finished CalibProfile when the line ends a profile, so profiles can be handed on one
+ * at a time as the file is read.
+ *
+ * Two flavours of file are understood:
+ *      calibration files - profiles end at a "Stopped" line
+ *      tick files        - profiles end at an "IMU heading at End" line
+ */
+public class CalibProfileParser {
+
+    // Bits of headerSet, one per header value
+    static final int BATTERY_VOLTAGE       = 0x01;
+    static final int NOMINAL_POWER         = 0x02;
+    static final int ACCELERATION_THROTTLE = 0x04;
+    static final int SEQUENCE              = 0x08;
+    static final int LEFT_MEASURE1         = 0x10;
+    static final int RIGHT_MEASURE1        = 0x20;
+    static final int LEFT_MEASURE2         = 0x40;
+    static final int RIGHT_MEASURE2        = 0x80;
+
+    boolean tickFile;
+
+    CalibColumns columns = new CalibColumns();
+
+    double batteryVoltage = 0.0;
+    double nominalPower   = 0.0;
+    double accelerationThrottle = 1.0;
+    String sequence       = "";
+    double leftMeasure1   = 0.0;
+    double leftMeasure2   = 0.0;
+    double rightMeasure1  = 0.0;
+    double rightMeasure2  = 0.0;
+    boolean acquireData   = false;
+    int     headerSet     = 0;      // header values set by the lines parsed so far
+    int     profileHeaderSet = 0;   // header values that had been set when the last profile was made
+
+    // Validity of the profile being acquired, see CalibProfile.validity. Calibration profiles are
+    // checked as their rows arrive and no more rows are stored once one is out of order.
+    int     validity   = CalibProfile.UNCHECKED;
+    int     invalidIdx = -1;
+
+    // Lines parsed, and data rows of profiles that were not stored because they are malformed
+    // or follow a row that is out of order, see CalibrationMetrics
+    long    numLines     = 0;
+    long    rowsRejected = 0;
+
+    // Decoder for the data rows, reused for every line
+    private final CalibRowDecoder decoder = new CalibRowDecoder();
+
+
+    /**
+     * Primary class constructor.
+     * @param tickFile - true for tick calibration files, false for calibration files
+     */
+    public CalibProfileParser(boolean tickFile) {
+        this.tickFile = tickFile;
+    }
+
+    /**
+     * Parse one line of the file.
+     * @param line - line of the file, without the line terminator
+     * @return     - the finished profile if this line ends one, otherwise null
+     */
+    public CalibProfile parseLine(String line) {
+
+        // Header keywords are only looked for in the first tab separated field
+        int tab = line.indexOf('\t');
+        String head = (tab < 0) ? line : line.substring(0, tab);
+
+        CalibProfile profile = parseHeader(head);
+
+        // looking for something like:
+        // 005.123 : \t  50.000\t  20\t   20\t 0.520\t 0.440
+        int status = isStoringRows() ? decoder.decode(line) : CalibRowDecoder.ROW_NOT_DATA;
+        addDecodedRow(decoder, status, tab >= 0);
+        return profile;
+    }
+
+    /**
+     * Store the data row of a line, after parseHeader() of the line, and count the line and a
+     * rejected row. For readers that decode the rows themselves, see MappedCalibrationReader.
+     * @param rowDecoder - decoder holding the row of the line
+     * @param status     - what it made of the line, only looked at if isStoringRows()
+     * @param hasTab     - true if the line has a tab after its first field
+     */
+    void addDecodedRow(CalibRowDecoder rowDecoder, int status, boolean hasTab) {
+        numLines++;
+        if (isStoringRows()) {
+            if (status == CalibRowDecoder.ROW_OK) {
+                addRow(rowDecoder);
+            } else if (status == CalibRowDecoder.ROW_MALFORMED) {
+                rowsRejected++;
+            }
+        } else if (acquireData && hasTab) {
+            rowsRejected++;
+        }
+    }
+
+    /**
+     * Apply the header keywords found in the first field of a line.
+     * @param head - first tab separated field of the line
+     * @return     - the finished profile if this line ends one, otherwise null
+     */
+    public CalibProfile parseHeader(String head) {
+        return tickFile ? parseTickHeader(head) : parseCalibrationHeader(head);
+    }
+
+    /**
+     * Add the point decoded from a data row to the profile being acquired.
+     * Data rows outside of a profile are ignored.
+     */
+    public void addPoint(CalibRowDecoder rowDecoder) {
+        if (isStoringRows()) {
+            addRow(rowDecoder);
+        }
+    }
+
+    /**
+     * Return true between the start and end markers of a profile.
+     */
+    public boolean isAcquiring() {
+        return acquireData;
+    }
+
+    /**
+     * Return true if data rows are wanted, i.e. a profile is being acquired and it has
+     * not been found invalid. Rows that aren't wanted need not even be decoded.
+     */
+    public boolean isStoringRows() {
+        return acquireData && (validity <= CalibProfile.VALID);
+    }
+
+    /**
+     * Store a row, checking that the timestamp and left,right encoders are still increasing.
+     * The row that breaks the order is stored, so the reason can be shown, and is the last.
+     */
+    private void addRow(CalibRowDecoder row) {
+        int n = columns.numPoints;
+        int problem = CalibProfile.VALID;
+        if ((validity == CalibProfile.VALID) && (n > 0)) {
+            if (row.timeStamp < columns.timeStamps[n-1]) {
+                problem = CalibProfile.TIME_NOT_INCREASING;
+            } else if (row.leftEncoder < columns.leftEncoders[n-1]) {
+                problem = CalibProfile.LEFT_ENCODER_NOT_INCREASING;
+            } else if (row.rightEncoder < columns.rightEncoders[n-1]) {
+                problem = CalibProfile.RIGHT_ENCODER_NOT_INCREASING;
+            }
+        }
+        columns.add(row);
+        if (problem != CalibProfile.VALID) {
+            validity   = problem;
+            invalidIdx = n;
+        }
+    }
+
+    private CalibProfile parseCalibrationHeader(String head) {
+
+        CalibProfile profile = null;
+        String[] subchunks;
+
+        // looking for something like:
+        // 005.123 : Robot battery voltage = 12.687
+        if (head.contains("battery voltage")) {
+            subchunks = head.split("=");
+            batteryVoltage = Double.parseDouble(subchunks[1]);
+            headerSet |= BATTERY_VOLTAGE;
+        }
+        // looking for something like:
+        // 005.123 : Nominal power: 0.40
+        if (head.contains("power:")) {
+            subchunks = head.split(":");
+            if (subchunks.length == 3) {
+                nominalPower = Double.parseDouble(subchunks[2]);
+                headerSet |= NOMINAL_POWER;
+            }
+        }
+        // looking for something like:
+        // 005.123 : IMU heading at Begin: -0.000000
+        if (head.contains("IMU") && head.contains("Begin")) {
+            columns = new CalibColumns();
+            acquireData = true;
+            validity   = CalibProfile.VALID;
+            invalidIdx = -1;
+        }
+        // looking for something like:
+        // 005.123 : Stopped
+        if (head.contains("Stopped")) {
+            profile = new CalibProfile(columns, nominalPower, accelerationThrottle, batteryVoltage, sequence, leftMeasure1, rightMeasure1, leftMeasure2, rightMeasure2 );
+            profile.validity   = validity;
+            profile.invalidIdx = invalidIdx;
+            profileHeaderSet = headerSet;
+            acquireData = false;
+        }
+        // looking for something like:
+        // 005.123 : Left Measure : 0.4
+        if (head.contains("Left Measure :")) {
+            subchunks = head.split(":");
+            if (subchunks.length == 3) {
+                leftMeasure1 = Double.parseDouble(subchunks[2]);
+                headerSet |= LEFT_MEASURE1;
+            }
+        }
+        // looking for something like:
+        // 005.123 : Right Measure : 0.4
+        if (head.contains("Right Measure :")) {
+            subchunks = head.split(":");
+            if (subchunks.length == 3) {
+                rightMeasure1 = Double.parseDouble(subchunks[2]);
+                headerSet |= RIGHT_MEASURE1;
+            }
+        }
+        // looking for something like:
+        // 005.123 : Left Measure2 : 0.4
+        if (head.contains("Left Measure2 :")) {
+            subchunks = head.split(":");
+            if (subchunks.length == 3) {
+                leftMeasure2 = Double.parseDouble(subchunks[2]);
+                headerSet |= LEFT_MEASURE2;
+            }
+        }
+        // looking for something like:
+        // 005.123 : Right Measure2 : 0.4
+        if (head.contains("Right Measure2 :")) {
+            subchunks = head.split(":");
+            if (subchunks.length == 3) {
+                rightMeasure2 = Double.parseDouble(subchunks[2]);
+                headerSet |= RIGHT_MEASURE2;
+            }
+        }
+        // looking for something like:
+        // 005.123 : Sequence : LR
+        if (head.contains("Sequence:")) {
+            subchunks = head.split(":");
+            if (subchunks.length == 3) {
+                sequence = subchunks[2].trim();
+                headerSet |= SEQUENCE;
+            }
+        }
+        // looking for something like:
+        // 005.123 : Acceleration throttle : 0.001
+        if (head.contains("Acceleration throttle:")) {
+            subchunks = head.split(":");
+            if (subchunks.length == 3) {
+                accelerationThrottle = Double.parseDouble(subchunks[2]);
+                headerSet |= ACCELERATION_THROTTLE;
+            }
+        }
+        return profile;
+    }
+
+    private CalibProfile parseTickHeader(String head) {
+
+        CalibProfile profile = null;
+        String[] subchunks;
+
+        // looking for something like:
+        // 005.123 : Robot battery voltage = 12.687
+        if (head.contains("battery voltage")) {
+            subchunks = head.split("=");
+            batteryVoltage = Double.parseDouble(subchunks[1]);
+            headerSet |= BATTERY_VOLTAGE;
+        }
+        // looking for something like:
+        // 005.123 : Nominal power: 0.40
+        if (head.contains("Nominal power:")) {
+            subchunks = head.split(":");
+            if (subchunks.length == 3) {
+                nominalPower = Double.parseDouble(subchunks[2]);
+                headerSet |= NOMINAL_POWER;
+            }
+        }
+        // looking for something like:
+        // 005.123 : IMU heading at Begin: -0.000000
+        if (head.contains("IMU") && head.contains("Begin")) {
+            columns = new CalibColumns();
+            acquireData = true;
+        }
+        // looking for something like:
+        // 005.123 : IMU heading at End: -1.000000
+        if (head.contains("IMU") && head.contains("End")) {
+            Diagnostics.CONSOLE.debug("%s\n", nominalPower);
+            profile = new CalibProfile(columns, nominalPower, batteryVoltage );
+            profileHeaderSet = headerSet;
+            acquireData = false;
+        }
+        return profile;
+    }
+}
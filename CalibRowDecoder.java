@@ -0,0 +1,240 @@
+package calibration;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Decoder for calibration data rows of the fixed form:
+ *
+ *      005.123 : \t  50.000\t  20\t   20\t 0.520\t 0.440
+ *
+ * i.e. a log prefix followed by timestamp, left encoder, right encoder, left velocity and
+ * right velocity, all tab separated. Fields are parsed directly from the characters (or bytes)
+ * of the row, without building intermediate Strings, and a bad row is reported through the
+ * return code rather than a NumberFormatException.
+ *
+ * A decoder holds the values of the last decoded row and a small reusable work area, so
+ * one instance should be used per reader thread.
+ */
+public class CalibRowDecoder {
+
+    public static final int ROW_OK        = 0;  // row decoded, values are available
+    public static final int ROW_NOT_DATA  = 1;  // row does not have the 6 tab separated fields
+    public static final int ROW_MALFORMED = 2;  // row has 6 fields but one is not a number
+
+    static final int NUM_FIELDS = 6;
+
+    // Largest power of ten that is exactly representable as a double
+    private static final double[] POW10 = {
+        1e0,  1e1,  1e2,  1e3,  1e4,  1e5,  1e6,  1e7,  1e8,  1e9,  1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    // Values of the last successfully decoded row
+    double timeStamp;
+    int    leftEncoder;
+    int    rightEncoder;
+    double leftVelocity;
+    double rightVelocity;
+
+    // Reusable copy of the row being decoded, and the field boundaries within it
+    private char[] text       = new char[128];
+    private int[]  fieldStart = new int[NUM_FIELDS + 1];
+    private int[]  fieldEnd   = new int[NUM_FIELDS + 1];
+
+    // Result of the last parseNumber call
+    private double number;
+
+
+    /**
+     * Decode a data row held in a String.
+     * @param line - one line of the calibration data file, without the line terminator
+     * @return     - ROW_OK, ROW_NOT_DATA or ROW_MALFORMED
+     */
+    public int decode(String line) {
+        int length = line.length();
+        ensureCapacity(length);
+        line.getChars(0, length, text, 0);
+        return decodeText(length);
+    }
+
+    /**
+     * Decode a data row held in buf between start (inclusive) and end (exclusive).
+     * @param buf   - buffer holding the calibration data file, e.g. a mapped window
+     * @param start - offset of the first byte of the row
+     * @param end   - offset just past the last byte of the row, without the line terminator
+     * @return      - ROW_OK, ROW_NOT_DATA or ROW_MALFORMED
+     */
+    public int decode(ByteBuffer buf, int start, int end) {
+        int length = end - start;
+        ensureCapacity(length);
+        for (int idx = 0; idx < length; idx++) {
+            text[idx] = (char) (buf.get(start + idx) & 0xff);
+        }
+        return decodeText(length);
+    }
+
+    /**
+     * Return a CalibPoint holding the values of the last decoded row.
+     */
+    public CalibPoint toCalibPoint() {
+        return new CalibPoint(timeStamp, leftEncoder, rightEncoder, leftVelocity, rightVelocity);
+    }
+
+    /**
+     * Split the first length characters of text on tabs and decode the numeric fields.
+     */
+    private int decodeText(int length) {
+
+        // Split on tabs. Like String.split, trailing empty fields don't count.
+        int numFields = 0;
+        int lastNonEmpty = 0;
+        int fs = 0;
+        for (int pos = 0; pos <= length; pos++) {
+            if ((pos == length) || (text[pos] == '\t')) {
+                if (pos > fs) {
+                    if (numFields > NUM_FIELDS) { return ROW_NOT_DATA; }
+                    lastNonEmpty = numFields + 1;
+                }
+                if (numFields <= NUM_FIELDS) {
+                    fieldStart[numFields] = fs;
+                    fieldEnd[numFields]   = pos;
+                }
+                numFields++;
+                fs = pos + 1;
+            }
+        }
+        if (lastNonEmpty != NUM_FIELDS) { return ROW_NOT_DATA; }
+
+        // timeStamp
+        if (!parseNumber(fieldStart[1], fieldEnd[1])) { return ROW_MALFORMED; }
+        double ts = number;
+        // left encoder
+        long le = parseInt(fieldStart[2], fieldEnd[2]);
+        if (le == Long.MIN_VALUE) { return ROW_MALFORMED; }
+        // right encoder
+        long re = parseInt(fieldStart[3], fieldEnd[3]);
+        if (re == Long.MIN_VALUE) { return ROW_MALFORMED; }
+        // left velocity
+        if (!parseNumber(fieldStart[4], fieldEnd[4])) { return ROW_MALFORMED; }
+        double lv = number;
+        // right velocity
+        if (!parseNumber(fieldStart[5], fieldEnd[5])) { return ROW_MALFORMED; }
+        double rv = number;
+
+        timeStamp     = ts;
+        leftEncoder   = (int) le;
+        rightEncoder  = (int) re;
+        leftVelocity  = lv;
+        rightVelocity = rv;
+        return ROW_OK;
+    }
+
+    /**
+     * Parse an int field the same way as Integer.parseInt(s.trim()).
+     * @return - the value, or Long.MIN_VALUE if the field is not an int
+     */
+    private long parseInt(int start, int end) {
+        while ((start < end) && (text[start] <= ' ')) { start++; }
+        while ((end > start) && (text[end-1] <= ' ')) { end--; }
+
+        boolean negative = false;
+        if ((start < end) && ((text[start] == '-') || (text[start] == '+'))) {
+            negative = (text[start] == '-');
+            start++;
+        }
+        if (start == end) { return Long.MIN_VALUE; }
+
+        long value = 0;
+        for (int pos = start; pos < end; pos++) {
+            int digit = text[pos] - '0';
+            if ((digit < 0) || (digit > 9)) { return Long.MIN_VALUE; }
+            value = value * 10 + digit;
+            if (value > 1L + Integer.MAX_VALUE) { return Long.MIN_VALUE; }
+        }
+        if (negative) { value = -value; }
+        if ((value > Integer.MAX_VALUE) || (value < Integer.MIN_VALUE)) { return Long.MIN_VALUE; }
+        return value;
+    }
+
+    /**
+     * Parse a decimal field, leaving the value in number.
+     * Accepts an optional sign, digits with at most one decimal point and an optional exponent.
+     * Values with up to 15 significant digits and a small power of ten are converted exactly,
+     * which rounds the same as Double.parseDouble. Longer values fall back to Double.parseDouble,
+     * which cannot throw at that point since the syntax has already been checked.
+     * @return - false if the field is not a decimal number
+     */
+    private boolean parseNumber(int start, int end) {
+        while ((start < end) && (text[start] <= ' ')) { start++; }
+        while ((end > start) && (text[end-1] <= ' ')) { end--; }
+
+        int pos = start;
+        boolean negative = false;
+        if ((pos < end) && ((text[pos] == '-') || (text[pos] == '+'))) {
+            negative = (text[pos] == '-');
+            pos++;
+        }
+
+        long    mantissa  = 0;
+        int     digits    = 0;     // significant digits in mantissa
+        int     numDigits = 0;     // all digits seen
+        int     scale     = 0;     // power of ten to divide mantissa by
+        boolean seenPoint = false;
+        for ( ; pos < end; pos++) {
+            char c = text[pos];
+            if ((c >= '0') && (c <= '9')) {
+                numDigits++;
+                if ((mantissa != 0) || (c != '0')) { digits++; }
+                if (digits <= 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (seenPoint) { scale++; }
+                } else if (!seenPoint) {
+                    scale--;
+                }
+            } else if ((c == '.') && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if (numDigits == 0) { return false; }
+
+        // optional exponent
+        if ((pos < end) && ((text[pos] == 'e') || (text[pos] == 'E'))) {
+            pos++;
+            boolean negativeExp = false;
+            if ((pos < end) && ((text[pos] == '-') || (text[pos] == '+'))) {
+                negativeExp = (text[pos] == '-');
+                pos++;
+            }
+            if (pos == end) { return false; }
+            int exponent = 0;
+            for ( ; pos < end; pos++) {
+                int digit = text[pos] - '0';
+                if ((digit < 0) || (digit > 9)) { return false; }
+                if (exponent < 100000) { exponent = exponent * 10 + digit; }
+            }
+            scale += negativeExp ? exponent : -exponent;
+        }
+        if (pos != end) { return false; }
+
+        // Both mantissa and the power of ten are exact doubles here, so the single
+        // rounding of the division or product is the correctly rounded result.
+        if ((digits <= 15) && (scale >= 0) && (scale < POW10.length)) {
+            double value = mantissa / POW10[scale];
+            number = negative ? -value : value;
+        } else if ((digits <= 15) && (scale < 0) && (-scale < POW10.length)) {
+            double value = mantissa * POW10[-scale];
+            number = negative ? -value : value;
+        } else {
+            number = Double.parseDouble(new String(text, start, end - start));
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int length) {
+        if (text.length < length) {
+            text = new char[Math.max(length, text.length * 2)];
+        }
+    }
+}
@@ -8,212 +8,282 @@ import java.math.MathContext;
 
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 
 
 /**
  * Class to perform calibration analysis.
  */
-public class CalibrateAccel {
+public class CalibrateAccel implements AnalysisStage<CalibrateAccel.ProfileResult> {
 
     String dataFile = "CalibAccel.txt";        // default data file name, can be overwritten from a command line argument.
     String outFile  = "ParametersAccel.txt";   // default output file name, can be overwritten from a command line argument.
     
+    boolean useMappedReader = false;        // read the data file with MappedCalibrationReader, set by -mmap
+    boolean useParallelReader = false;      // read the data file with ParallelCalibrationReader, set by -parallel
+    boolean useCache = false;               // read the data file through CalibrationCache, set by -cache
+    int numThreads = 1;                     // analyze profiles on this many threads, set by -threads
+    String resultCacheDir = null;           // reuse results of unchanged data files from here, set by -resultcache
+    long resultCacheMB = ResultCache.DEFAULT_MAX_MB;    // bound on the result cache, set by -resultcachemb
+    
     StringBuffer msgOutFile = new StringBuffer();
+    Diagnostics  diagnostics = Diagnostics.CONSOLE;  // where the analysis shows its progress, see CalibrationEngine
+    
+    // Error-checking flags. If any of these are asserted false then something
+    // is wrong with the calibration data provided. 
+    boolean allProfilesValid = true;        
+    boolean allProfilesRampUp = true;
+    int     numProfiles = 0;                // profiles applied, valid or not
+    
+    // Profiles grouped by nominal power and acceleration throttle, in order of first appearance
+    Map<GroupKey, ProfileGroup> groups = new LinkedHashMap<>();
+    
+    // Set by finish(), rounded to 3 significant figures as written to the parameter file
+    double maxFwdPwrAccel;
+    double maxBckPwrAccel;
     
     int rampUpEndIdx = -1;
     int steadyIdx = -1;
     double steadyLeftVelocity;
     double steadyRightVelocity;
     double ratioV;
+    
+    SteadyStateDetector steadyStateDetector = new SteadyStateDetector();
+    
+    // Nominal powers and acceleration throttles closer than this are the same setting
+    static final double GROUP_QUANTUM = 0.000001;
+    
+    // A setting fails if the slip is more than this fraction of the ticks per inch
+    static final double SLIP_THRESHOLD = 0.25;
+    
+    // Change when a change to reading, checking or analyzing profiles changes the parameters,
+    // so results in a ResultCache are not reused
+    static final int ANALYZER_VERSION = 1;
+    
+    /**
+     * Nominal power and acceleration throttle of a group, in units of GROUP_QUANTUM.
+     */
+    static final class GroupKey {
+        final long nominalPower;
+        final long accelerationThrottle;
+        
+        GroupKey(double nominalPower, double accelerationThrottle) {
+            this.nominalPower         = Math.round(nominalPower / GROUP_QUANTUM);
+            this.accelerationThrottle = Math.round(accelerationThrottle / GROUP_QUANTUM);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GroupKey)) { return false; }
+            GroupKey other = (GroupKey) o;
+            return (nominalPower == other.nominalPower) && (accelerationThrottle == other.accelerationThrottle);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(nominalPower) + Long.hashCode(accelerationThrottle);
+        }
+    }
+    
+    /**
+     * Ticks and measures of the profiles run at the same nominal power and acceleration throttle.
+     */
+    static class ProfileGroup {
+        double   nominalPower;
+        double   accelerationThrottle;
+        int      numMembers = 0;
+        double[] leftMeasure  = new double[2];
+        int[]    leftTicks    = new int[2];
+        double[] rightMeasure = new double[2];
+        int[]    rightTicks   = new int[2];
+        
+        ProfileGroup(double nominalPower, double accelerationThrottle) {
+            this.nominalPower         = nominalPower;
+            this.accelerationThrottle = accelerationThrottle;
+        }
+        
+        void add(double leftMeasure1, int leftTick, double rightMeasure1, int rightTick) {
+            if (numMembers == leftMeasure.length) {
+                leftMeasure  = Arrays.copyOf(leftMeasure,  numMembers * 2);
+                leftTicks    = Arrays.copyOf(leftTicks,    numMembers * 2);
+                rightMeasure = Arrays.copyOf(rightMeasure, numMembers * 2);
+                rightTicks   = Arrays.copyOf(rightTicks,   numMembers * 2);
+            }
+            leftMeasure[numMembers]  = leftMeasure1;
+            leftTicks[numMembers]    = leftTick;
+            rightMeasure[numMembers] = rightMeasure1;
+            rightTicks[numMembers]   = rightTick;
+            numMembers++;
+        }
+    }
 
     
+    /**
+     * Class constructor for analyzing profiles that have already been read, see analyze().
+     */
+    CalibrateAccel() {
+    }
+    
     /**
      * Class constructor, runs analysis of calibration data.
      */
     public CalibrateAccel(String[] args){
     
-        // Error-checking flags. If any of these are asserted false then something
-        // is wrong with the calibration data provided. 
-        boolean allProfilesValid = true;        
-        boolean allProfilesRampUp = true;
-        
         // This checks the command line arguments and loads
         // parameters into the SettingsFrame mySettings.
-        parseArgs(args);
+        // If only the usage was asked for, there is nothing to analyze
+        if (!parseArgs(args)) { return; }
         
-        // Open, read & close calibration data file
-        // If there is a file problem or if there are no profiles, then simply exit
-        List<CalibProfile> calibProfiles = CalibrationFileHandler.readCalibrationDataFile(dataFile);
+        // If this data file has been analyzed the same way before, reuse the result
+        ResultCache resultCache = null;
+        String resultKey = null;
+        if (resultCacheDir != null) {
+            resultCache = new ResultCache(resultCacheDir, resultCacheMB << 20);
+            resultKey = ResultCache.key(dataFile, config());
+            ResultCache.Entry cached = resultCache.get(resultKey);
+            if (cached != null) {
+                diagnostics.info("Reusing cached result of %s\n%s", dataFile, cached.parameters);
+                if (!cached.valid) {
+                    diagnostics.error("\nBOO! Calibration data file has critical problems.\n");
+                } else {
+                    diagnostics.info("Success\n");
+                }
+                Diagnostics.flush();
+                ResultCache.writeParameters(outFile, cached.parameters);
+                return;
+            }
+        }
+        
+        // Open calibration data file, profiles are read one at a time as they are analyzed
+        // If there is a file problem, then simply exit
+        Stream<CalibProfile> calibProfiles = openCalibrationDataFile();
         if (calibProfiles == null) { return; }
         
-        // Open calibration parameter file to write
+        // Analyze the profiles as they are read
+        CalibrationEngine engine = new CalibrationEngine(numThreads, Diagnostics.CONSOLE);
+        CalibrationEngine.AccelResult result = engine.analyzeAccel(calibProfiles::iterator);
+        calibProfiles.close();
+        
+        // Open calibration parameter file to write once the analysis is done, so the
+        // parameters of an earlier run stay in place while the data file is read
         // If there is a file problem, simply exit
         BufferedWriter writer = CalibrationFileHandler.openWriteFile(outFile);
         if (writer == null) { return; }
         
-        // pull properties from each profile
-        List<Double>  leftMeasure  = new ArrayList<>();
-        List<Double>  rightMeasure = new ArrayList<>();
-        List<Integer> leftTicks    = new ArrayList<>();
-        List<Integer> rightTicks   = new ArrayList<>();
-        List<Double>  powerList    = new ArrayList<>();
-        List<Double>  throttleList = new ArrayList<>();
-
-        // Iterate through list of profiles
-        for (CalibProfile profile : calibProfiles) {
-              
-            System.out.printf("lm=%f\n", profile.leftMeasure1);
-              
-            // Set up 5 arrays, containing the series of data values from the data file:
-            //
-            //      Timestamp
-            //      Left encoder
-            //      Left velocity
-            //      Right encoder
-            //      Right velocity
-            //  
-            int numPoints = profile.calibPoints.size();
-            //        
-            double[] ts = new double[numPoints];
-            int[]    le = new int   [numPoints];
-            double[] lv = new double[numPoints];
-            int[]    re = new int   [numPoints];
-            double[] rv = new double[numPoints];
-            int idx = 0;
-            //
-            for (CalibPoint cp : profile.calibPoints) {
-                ts[idx] = cp.timeStamp;
-                le[idx] = cp.leftEncoder;
-                lv[idx] = cp.leftVelocity;
-                re[idx] = cp.rightEncoder;
-                rv[idx] = cp.rightVelocity;
-                idx++;
-            }
-                        
-            
-            // Validity check for data
-            // If invalid, set profileIsValid flag
-            // As soon as any invalidity is found then this entire data set is bad, don't need to look for 
-            //   any other invalidities for the given profile
-            //
-            // The timestamp, and left,right encoders should all be strictly increasing.
-            // If a robot wasn't fully stopped it may show encoder readings from a previous run.
-            // Using data from a robot that wasn't stopped will give a bad regression.
-            // 
-            boolean profileIsValid = true;
-            for (int vdx = 1; vdx < numPoints; vdx++) {
-                if (ts[vdx] < ts[vdx-1]) {
-                    System.out.printf("BOO! power %f time %f at %d not increasing over time %f at %d\n", 
-                                        profile.nominalPower, ts[vdx], vdx, ts[vdx-1], vdx-1);
-                    profileIsValid = false;
-                    allProfilesValid = false;
-                    break;
-                }
-                if (le[vdx] < le[vdx-1]) {
-                    System.out.printf("BOO! power %f left encoder %d at %d not increasing over %d at %d\n", 
-                                        profile.nominalPower, le[vdx], vdx, le[vdx-1], vdx-1);
-                    profileIsValid = false;
-                    allProfilesValid = false;
-                    break;
-                }
-                if (re[vdx] < re[vdx-1]) {
-                    System.out.printf("BOO! power %f right encoder %d at %d not increasing over %d at %d\n", 
-                                        profile.nominalPower, re[vdx], vdx, re[vdx-1], vdx-1);
-                    profileIsValid = false;
-                    allProfilesValid = false;
-                    break;
-                }                    
-            }
-            // if the data is invalid, then terminate this iteration of the for-loop and
-            // move on to the next profile
-            if (!profileIsValid) {
-                continue;
-            }
-            
-            // From each profile, need to take:
-            // left,right of ticks, measures
-            // nominal power and acceleration throttle
-            leftMeasure.add(profile.leftMeasure1);
-            rightMeasure.add(profile.rightMeasure1);
-            leftTicks.add(le[le.length-1]);
-            rightTicks.add(re[re.length-1]);
-            powerList.add(profile.nominalPower);
-            throttleList.add(profile.accelerationThrottle);
+        // Write and Close write file
+        long start = CalibrationMetrics.WRITE.start();
+        try {
+            writer.write(result.parameters);
+            writer.close();
+            CalibrationMetrics.WRITE.record(start);
+        } catch (IOException e) {
+            System.out.printf("\nBOO! Failed to write to Output file.\n");
+        }
+        if (resultCache != null) {
+            resultCache.put(resultKey, result.valid, result.numProfiles, result.parameters);
         }
         
+
+    }
+    
+    /**
+     * Analyze calibration profiles, filling msgOutFile with the calibration parameters.
+     * @param profiles - profiles to analyze, each is only looked at once
+     * @return         - true if all of the profiles were valid
+     */
+    boolean analyze(Iterable<CalibProfile> profiles) {
+    
+        // Iterate through profiles, on numThreads threads
+        ParallelProfileAnalysis.run(profiles, numThreads, this::analyzeOne, this::apply);
+        
+        return finish();
+    }
+    
+    /**
+     * Consider the profiles analyzed so far as a whole, setting msgOutFile to the calibration
+     * parameters.
+     * @return - true if all of the profiles were valid
+     */
+    @Override
+    public boolean finish() {
+    
+        msgOutFile.setLength(0);
         
         // Now consider the profiles as a whole...
         
-        // Search for profiles with matching pairs of acceleration throttle and nominal power
-        // These pairs of profiles are required to solve for S,L in Tn = S*In + L
+        // Search for profiles with matching acceleration throttle and nominal power
+        // Two or more of these profiles are required to solve for S,L in Tn = S*In + L
         
+        long start = CalibrationMetrics.ACCEL_PAIRING.start();
         double maxPassFwd = 0.0;
         double maxPassBck = 0.0;
         double minFailFwd = 1.0;
         double minFailBck = 1.0;
         
         
-        for (int idx = 0; idx < powerList.size(); idx++) {
-            for (int jdx = idx+1; jdx < powerList.size(); jdx++) {
-//                System.out.printf("%f %f %f %f\n", powerList.get(idx), powerList.get(jdx), throttleList.get(idx), throttleList.get(jdx));
-                
-                double pwrDiff = Math.abs(powerList.get(idx)    - powerList.get(jdx));
-                double thrDiff = Math.abs(throttleList.get(idx) - throttleList.get(jdx));
-                if (  (pwrDiff < 0.000001 ) &&  
-                      (thrDiff < 0.000001 ) 
-                   ) {
+        for (ProfileGroup group : groups.values()) {
+            if (group.numMembers < 2) {
+                continue;
+            }
+            double power    = group.nominalPower;
+            double throttle = group.accelerationThrottle;
                                         
-                    double tpiLeft  = Math.abs( (leftTicks.get(idx) - leftTicks.get(jdx)) / (leftMeasure.get(idx) - leftMeasure.get(jdx)) );
-                    double slipLeft = leftTicks.get(idx) - tpiLeft * leftMeasure.get(idx);
-                    
-                    double tpiRight  = Math.abs( (rightTicks.get(idx) - rightTicks.get(jdx)) / (rightMeasure.get(idx) - rightMeasure.get(jdx)) );
-                    double slipRight = rightTicks.get(idx) - tpiRight * rightMeasure.get(idx);
+            double[] left  = fitSlip(group.leftMeasure,  group.leftTicks,  group.numMembers);
+            double tpiLeft  = left[0];
+            double slipLeft = left[1];
                     
-                    System.out.printf("NominalPower=%f AccelerationThrottle=%f\n", powerList.get(idx), throttleList.get(idx));
-                    System.out.printf("S(Lt)=%f L=%f\n", tpiLeft, slipLeft); 
-                    System.out.printf("S(Rt)=%f L=%f\n", tpiRight, slipRight); 
+            double[] right = fitSlip(group.rightMeasure, group.rightTicks, group.numMembers);
+            double tpiRight  = right[0];
+            double slipRight = right[1];
                     
-                    double slipThreshold = 0.25;
-                    double ratioL = slipLeft  / tpiLeft;
-                    double ratioR = slipRight / tpiRight;
-                    boolean leftOk = (ratioL <= slipThreshold);
-                    boolean rightOk = (ratioR <= slipThreshold);
+            diagnostics.info("NominalPower=%f AccelerationThrottle=%f\n", power, throttle);
+            diagnostics.info("S(Lt)=%f L=%f\n", tpiLeft, slipLeft); 
+            diagnostics.info("S(Rt)=%f L=%f\n", tpiRight, slipRight); 
                     
-                    System.out.printf("Lt:%f %s Rt:%f %s\n", ratioL, leftOk ? "PASS" : "FAIL", ratioR, rightOk ? "PASS" : "FAIL");
+            double ratioL = slipLeft  / tpiLeft;
+            double ratioR = slipRight / tpiRight;
+            boolean leftOk = (ratioL <= SLIP_THRESHOLD);
+            boolean rightOk = (ratioR <= SLIP_THRESHOLD);
                     
-                    // For passes, track the highest passing throttle
-                    if (leftOk && rightOk) {
-                        if ((powerList.get(idx) > 0) && (throttleList.get(idx) > maxPassFwd)) {
-                            maxPassFwd = throttleList.get(idx);
-                        }
-                        if ((powerList.get(idx) > 0) && (throttleList.get(idx) > maxPassBck)) {
-                            maxPassBck = throttleList.get(idx);
-                        }                        
-                    }
-                    // For fails, track the lowest failing throttle
-                    else {
-                        if ((powerList.get(idx) > 0) && (throttleList.get(idx) < minFailFwd)) {
-                            minFailFwd = throttleList.get(idx);
-                        }
-                        if ((powerList.get(idx) > 0) && (throttleList.get(idx) > minFailBck)) {
-                            minFailBck = throttleList.get(idx);
-                        }                        
+            diagnostics.info("Lt:%f %s Rt:%f %s\n", ratioL, leftOk ? "PASS" : "FAIL", ratioR, rightOk ? "PASS" : "FAIL");
                     
-                    }                    
+            // For passes, track the highest passing throttle
+            if (leftOk && rightOk) {
+                if ((power > 0) && (throttle > maxPassFwd)) {
+                    maxPassFwd = throttle;
                 }
+                if ((power > 0) && (throttle > maxPassBck)) {
+                    maxPassBck = throttle;
+                }                        
             }
+            // For fails, track the lowest failing throttle
+            else {
+                if ((power > 0) && (throttle < minFailFwd)) {
+                    minFailFwd = throttle;
+                }
+                if ((power > 0) && (throttle > minFailBck)) {
+                    minFailBck = throttle;
+                }                        
+                    
+            }                    
         }
         
+        CalibrationMetrics.ACCEL_PAIRING.record(start);
+        
         // Take the minimum of the highest passing throttle and the lowest failing throttle
         double maxThrottleFwd = Math.min(maxPassFwd, minFailFwd);
         double maxThrottleBck = Math.min(maxPassBck, minFailBck);
-        String msg = "MAX_FWD_PWR_ACCEL = " + string3sig(maxThrottleFwd) + "\n";
-        System.out.printf("%s", msg);
+        maxFwdPwrAccel = round3sig(maxThrottleFwd);
+        maxBckPwrAccel = round3sig(maxThrottleBck);
+        String msg = "MAX_FWD_PWR_ACCEL = " + maxFwdPwrAccel + "\n";
+        diagnostics.info("%s", msg);
         msgOutFile.append(msg);
-        msg = "MAX_BCK_PWR_ACCEL = " + string3sig(maxThrottleBck) + "\n";
-        System.out.printf("%s", msg);
+        msg = "MAX_BCK_PWR_ACCEL = " + maxBckPwrAccel + "\n";
+        diagnostics.info("%s", msg);
         msgOutFile.append(msg);
 
         
@@ -249,32 +319,56 @@ public class CalibrateAccel {
 */        
         
         if (!allProfilesValid) {
-            System.out.printf("\nBOO! Calibration data file has critical problems.\n");
+            diagnostics.error("\nBOO! Calibration data file has critical problems.\n");
         } else {
-            System.out.printf("Success\n");
+            diagnostics.info("Success\n");
         }
         
-        // Write and Close write file
-        try {
-            writer.write(msgOutFile.toString());
-            writer.close();
-        } catch (IOException e) {
-            System.out.printf("\nBOO! Failed to write to Output file.\n");
-        }
-        
-
+        return allProfilesValid;
+    }
+    
+    @Override
+    public String name() {
+        return "Accel";
+    }
+    
+    @Override
+    public String outFile() {
+        return outFile;
+    }
+    
+    @Override
+    public String config() {
+        return "Accel version=" + ANALYZER_VERSION + " slipThreshold=" + SLIP_THRESHOLD + " groupQuantum=" + GROUP_QUANTUM;
+    }
+    
+    @Override
+    public String parameters() {
+        return msgOutFile.toString();
+    }
+    
+    /**
+     * Open the calibration data file with the selected reader.
+     * @return - stream of profiles, or null if the file could not be read
+     */
+    private Stream<CalibProfile> openCalibrationDataFile() {
+        return CalibrationFileHandler.openCalibrationDataFile(dataFile, useCache, useParallelReader, useMappedReader);
     }
     
     /**
      * Parse the commane line arugments
      * @param args - Array of command line arguments
+     * @return     - false if the usage was asked for, so there is nothing to analyze
      */
-    private void parseArgs(String[] args) {
+    private boolean parseArgs(String[] args) {
     
         boolean setOutputFilename = false;
+        boolean setNumThreads = false;
+        boolean setResultCacheDir = false;
+        boolean setResultCacheMB = false;
         
         // If '--help' is any of the arguments then 
-        // show proper command line usage and exit
+        // show proper command line usage and stop
         for (String arg : args) {
             //
             // Always good to have an option to show what the valid command arguments are.
@@ -282,8 +376,9 @@ public class CalibrateAccel {
             if (arg.equals("--help") || arg.equals("-help")) {
                 System.out.println("Usage:");
                 System.out.println("Calibration [<DataFileName>] | [[-]-help] |");
-                System.out.println("    [-o <OutputFileName>]");                                
-                System.exit(0);
+                System.out.println("    [-o <OutputFileName>] | [-mmap] | [-parallel] | [-cache] | [-threads <N>] | [-metrics] |");
+                System.out.println("    [-quiet] | [-verbose] | [-resultcache <CacheDirectory>] | [-resultcachemb <MB>]");                                
+                return false;
             }
             //
             // Look for -o command. 
@@ -296,6 +391,81 @@ public class CalibrateAccel {
             if (arg.equals("-o")) {
                 setOutputFilename = true;                            
             }
+            //
+            // Look for -threads command.
+            // The next arg after -threads is the number of threads to analyze profiles on.
+            //
+            if (setNumThreads) {
+                try {
+                    numThreads = Math.max(1, Integer.parseInt(arg));
+                } catch (NumberFormatException e) {
+                    System.out.println("BOO!! -threads needs a number, using "+numThreads);
+                }
+                setNumThreads = false;
+            }
+            if (arg.equals("-threads")) {
+                setNumThreads = true;
+            }
+            //
+            // Look for -resultcache and -resultcachemb commands.
+            // The next arg is the result cache directory, or its bound in MB, see ResultCache.
+            //
+            if (setResultCacheDir) {
+                resultCacheDir = arg;
+                setResultCacheDir = false;
+            }
+            if (arg.equals("-resultcache")) {
+                setResultCacheDir = true;
+            }
+            if (setResultCacheMB) {
+                try {
+                    resultCacheMB = Math.max(1, Long.parseLong(arg));
+                } catch (NumberFormatException e) {
+                    System.out.println("BOO!! -resultcachemb needs a number, using "+resultCacheMB);
+                }
+                setResultCacheMB = false;
+            }
+            if (arg.equals("-resultcachemb")) {
+                setResultCacheMB = true;
+            }
+            //
+            // Look for -mmap command.
+            // Selects the memory-mapped reader instead of the line reader.
+            //
+            if (arg.equals("-mmap")) {
+                useMappedReader = true;
+            }
+            //
+            // Look for -parallel command.
+            // Selects the parallel reader, which splits the file over all processors.
+            //
+            if (arg.equals("-parallel")) {
+                useParallelReader = true;
+            }
+            //
+            // Look for -cache command.
+            // Loads the profiles from a binary cache next to the data file, made on first use.
+            //
+            if (arg.equals("-cache")) {
+                useCache = true;
+            }
+            //
+            // Look for -metrics command.
+            // Publishes stage timings and counters over JMX and shows them at exit.
+            //
+            if (arg.equals("-metrics")) {
+                CalibrationMetrics.enable();
+            }
+            //
+            // Look for -quiet and -verbose commands.
+            // Show only errors, or also each profile and regression, see Diagnostics.
+            //
+            if (arg.equals("-quiet")) {
+                Diagnostics.CONSOLE.level = Diagnostics.Level.ERROR;
+            }
+            if (arg.equals("-verbose")) {
+                Diagnostics.CONSOLE.level = Diagnostics.Level.DEBUG;
+            }
             
             
             // Data file name can only be first argument.
@@ -304,60 +474,179 @@ public class CalibrateAccel {
                 dataFile = args[0];
             }
         }
+        return true;
     }
        
+    /**
+     * What one profile adds to the analysis.
+     */
+    static class ProfileResult {
+        boolean valid;
+        double  nominalPower;
+        double  accelerationThrottle;
+        double  leftMeasure;
+        int     leftTicks;
+        double  rightMeasure;
+        int     rightTicks;
+        StringBuilder messages = new StringBuilder();   // problems, shown when the result is applied
+    }
+    
+    /**
+     * Add the result of one profile to the group of its nominal power and acceleration throttle.
+     * Results must be applied in profile order.
+     */
+    @Override
+    public void apply(ProfileResult result) {
+        diagnostics.debug("lm=%f\n", result.leftMeasure);
+        numProfiles++;
+        if (!result.valid) {
+            diagnostics.error("%s", result.messages);
+            allProfilesValid = false;
+            return;
+        }
+        GroupKey key = new GroupKey(result.nominalPower, result.accelerationThrottle);
+        ProfileGroup group = groups.get(key);
+        if (group == null) {
+            group = new ProfileGroup(result.nominalPower, result.accelerationThrottle);
+            groups.put(key, group);
+        }
+        group.add(result.leftMeasure, result.leftTicks, result.rightMeasure, result.rightTicks);
+    }
+    
+    /**
+     * Check one calibration profile and take its ticks and measures.
+     * Only looks at the profile, so profiles can be analyzed on several threads at once.
+     */
+    ProfileResult analyzeOne(CalibProfile profile) {
+        return analyzeOne(profile, ProfileValidator.check(profile));
+    }
+    
+    /**
+     * Take the ticks and measures of one calibration profile that has already been checked.
+     * @param problem - why the profile is not valid, or null if it is
+     */
+    @Override
+    public ProfileResult analyzeOne(CalibProfile profile, String problem) {
+        CalibrationEvents.ProfileAnalyzed event = new CalibrationEvents.ProfileAnalyzed();
+        event.begin();
+        ProfileResult result = analyzeProfile(profile, problem);
+        event.record("Accel", profile, result.valid);
+        return result;
+    }
+    
+    private ProfileResult analyzeProfile(CalibProfile profile, String problem) {
+              
+        ProfileResult result = new ProfileResult();
+        StringBuilder messages = result.messages;
+        
+        result.leftMeasure = profile.leftMeasure1;      // shown when the result is applied
+              
+        // The 5 columns of the profile, containing the series of data values from the data file:
+        //
+        //      Timestamp
+        //      Left encoder
+        //      Left velocity
+        //      Right encoder
+        //      Right velocity
+        //  
+        int numPoints = profile.numPoints;
+        //        
+        int[]    le = profile.leftEncoders;
+        int[]    re = profile.rightEncoders;
+                        
+            
+        // Validity check for data, see ProfileValidator
+        boolean profileIsValid = (problem == null);
+        if (!profileIsValid) {
+            messages.append(problem);
+        }
+        // if the data is invalid, then move on to the next profile
+        result.valid = profileIsValid;
+        if (!profileIsValid) {
+            return result;
+        }
+            
+        // From each profile, need to take:
+        // left,right of ticks, measures
+        // nominal power and acceleration throttle
+        result.nominalPower         = profile.nominalPower;
+        result.accelerationThrottle = profile.accelerationThrottle;
+        result.leftTicks            = le[numPoints-1];
+        result.rightMeasure         = profile.rightMeasure1;
+        result.rightTicks           = re[numPoints-1];
+        return result;
+    }
+    
+    /**
+     * Solve Tn = S*In + L for the ticks Tn and measures In of a group of profiles.
+     * Two profiles give S and L exactly, more are fitted by least squares.
+     * @return - {S, L}
+     */
+    static double[] fitSlip(double[] measure, int[] ticks, int numMembers) {
+        CalibrationEvents.RegressionFit event = new CalibrationEvents.RegressionFit();
+        event.begin();
+        if (numMembers == 2) {
+            double tpi  = Math.abs( (ticks[0] - ticks[1]) / (measure[0] - measure[1]) );
+            double slip = ticks[0] - tpi * measure[0];
+            event.record("slip", 1, numMembers, Double.NaN);
+            return new double[] {tpi, slip};
+        }
+        double meanMeasure = 0.0;
+        double meanTicks   = 0.0;
+        for (int idx = 0; idx < numMembers; idx++) {
+            meanMeasure += measure[idx];
+            meanTicks   += ticks[idx];
+        }
+        meanMeasure /= numMembers;
+        meanTicks   /= numMembers;
+        double sxx = 0.0;
+        double sxy = 0.0;
+        for (int idx = 0; idx < numMembers; idx++) {
+            double dx = measure[idx] - meanMeasure;
+            sxx += dx * dx;
+            sxy += dx * (ticks[idx] - meanTicks);
+        }
+        double tpi  = Math.abs(sxy / sxx);
+        double slip = meanTicks - tpi * meanMeasure;
+        event.record("slip", 1, numMembers, Double.NaN);
+        return new double[] {tpi, slip};
+    }
+    
     /**
      * Return String of double rounded to 3 significant figures.
      * Trailing zeros are omitted, even if they are a significant digit.
      */
     private String string3sig(double value) {
+        return String.valueOf(round3sig(value));
+    }
+    
+    /**
+     * Return double rounded to 3 significant figures.
+     */
+    private static double round3sig(double value) {
         BigDecimal bd = new BigDecimal(value);
         bd = bd.round(new MathContext(3));
-        return String.valueOf(bd.doubleValue());
+        return bd.doubleValue();
     }
 
        
     /**
      * Find the end of the ramp-up and find the steady-state ratio of the left/right velocities
+     * @param profile - the profile, only its first numPoints points are looked at
      */
-    private void inflectionPoint(double[] timeStamp, double[] leftVelocity, double[] rightVelocity) {
+    void inflectionPoint(CalibProfile profile) {
+        double[] timeStamp     = profile.timeStamps;
+        double[] leftVelocity  = profile.leftVelocities;
+        double[] rightVelocity = profile.rightVelocities;
     
-        final double TIME_FLATNESS = 100.0; // ms
-        int idx;
-        
         //
-        // Look for the first stretch of time of TIME_FLATNESS duration that has each of 
+        // Look for the first stretch of time of 100ms duration that has each of 
         // all samples of left and right velocities within a fixed value of each other.
         //
-        // By observation, the Hub reports velocites to the 0.02 ticks/millisecond.
-        //
-        for (idx = 0; idx < timeStamp.length; idx++) {
-            double endTime = timeStamp[idx] + TIME_FLATNESS;
-            int jdx = idx;
-            while ((jdx < timeStamp.length) && (timeStamp[jdx] < endTime)) { jdx++; }
-            if (jdx < timeStamp.length) {
-                double maxLeftVelocity = 0.0;
-                double minLeftVelocity = Double.POSITIVE_INFINITY;
-                double maxRightVelocity = 0.0;
-                double minRightVelocity = Double.POSITIVE_INFINITY;
-                double sumLeftVelocity = 0.0;
-                double sumRightVelocity = 0.0;
-                for (int i = idx; i <= jdx ; i++) {
-                    maxLeftVelocity = Math.max(maxLeftVelocity, leftVelocity[i]);
-                    minLeftVelocity = Math.min(minLeftVelocity, leftVelocity[i]);
-                    sumLeftVelocity += leftVelocity[i];
-                    maxRightVelocity = Math.max(maxRightVelocity, rightVelocity[i]);
-                    minRightVelocity = Math.min(minRightVelocity, rightVelocity[i]);
-                    sumRightVelocity += rightVelocity[i];
-                }
-                if (((maxLeftVelocity - minLeftVelocity) < 0.021) &&
-                    ((maxRightVelocity - minRightVelocity) < 0.021)) {
-                    steadyLeftVelocity = sumLeftVelocity / (jdx - idx + 1);
-                    steadyRightVelocity = sumRightVelocity / (jdx - idx + 1);
-                    steadyIdx = idx;
-                    break;
-                }
-            }
+        if (steadyStateDetector.detect(timeStamp, leftVelocity, rightVelocity, profile.numPoints)) {
+            steadyLeftVelocity = steadyStateDetector.steadyLeftVelocity;
+            steadyRightVelocity = steadyStateDetector.steadyRightVelocity;
+            steadyIdx = steadyStateDetector.steadyIdx;
         }
         
         //
@@ -367,17 +656,11 @@ public class CalibrateAccel {
         //
         ratioV = Math.min(steadyLeftVelocity, steadyRightVelocity)/Math.max(steadyLeftVelocity, steadyRightVelocity);
         boolean leftIsMax = steadyLeftVelocity >= steadyRightVelocity;
-        System.out.println("leftIsMax="+leftIsMax);
+        diagnostics.debug("leftIsMax=%b\n", leftIsMax);
         
-        for (idx = 0; idx < timeStamp.length; idx++) {
-            if ((leftVelocity[idx] > 0.0) && (rightVelocity[idx] > 0.0)) {            
-                double ratio = rightVelocity[idx]/leftVelocity[idx];
-                if (ratio > 1) { ratio = 1.0/ratio; }
-                if (ratio > (1-0.03)*ratioV) {
-                    rampUpEndIdx = idx;
-                    break;
-                }
-            }            
+        int idx = SteadyStateDetector.rampUpEnd(leftVelocity, rightVelocity, profile.numPoints, ratioV, 0.03);
+        if (idx >= 0) {
+            rampUpEndIdx = idx;
         }
         
     }       
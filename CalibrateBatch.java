@@ -0,0 +1,356 @@
+package calibration;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Batch analysis of a whole directory of calibration data files in one JVM.
+ *
+ * Every file matching the given directory or glob is read, analyzed with CalibrateOP or
+ * CalibrateAccel and its parameters written to a parameter file of its own. Result cache
+ * lookups and writing parameter files run on an I/O executor (virtual threads when the JVM
+ * has them). Parsing, which is most of the work, and analysis run on a fixed pool of -threads
+ * compute threads, and the number of files in flight is bounded so parsed profiles don't
+ * pile up in memory. A summary of all files is written at the end.
+ *
+ * With -resultcache, files whose content and analysis are unchanged since an earlier run are
+ * not read or analyzed again, their parameters come from the ResultCache.
+ */
+public class CalibrateBatch {
+
+    String  input      = ".";               // directory or glob of data files
+    String  outDir     = null;              // directory for parameter files, default is next to each data file
+    boolean accel      = false;             // CalibrateAccel instead of CalibrateOP, set by -accel
+    boolean useCache   = false;             // read the data files through CalibrationCache, set by -cache
+    int     numThreads = Runtime.getRuntime().availableProcessors();
+    String  resultCacheDir = null;          // reuse results of unchanged data files from here, set by -resultcache
+    long    resultCacheMB  = ResultCache.DEFAULT_MAX_MB;    // bound on the result cache, set by -resultcachemb
+
+    private ResultCache resultCache;        // made by run() if there is a resultCacheDir
+    private String      config;             // of the analysis, see AnalysisStage.config()
+
+    /**
+     * Result of analyzing one data file.
+     */
+    static class BatchResult {
+        Path    dataFile;
+        Path    outFile;
+        boolean read;           // data file could be read
+        int     numProfiles;    // profiles found in the data file
+        boolean valid;          // all profiles in the file were valid
+        boolean written;        // parameter file was written
+        boolean cached;         // result came from the result cache
+        String  resultKey;      // key in the result cache, null if not cached
+        String  parameters = "";
+        long    elapsedNanos;
+    }
+
+
+    /**
+     * Class constructor, runs analysis of all matching calibration data files.
+     */
+    public CalibrateBatch(String[] args) {
+
+        // If only the usage was asked for, there is nothing to analyze
+        if (!parseArgs(args)) { return; }
+
+        List<Path> dataFiles = findDataFiles(input);
+        if (dataFiles == null) { return; }
+        if (dataFiles.isEmpty()) {
+            System.out.println("BOO!! No data files match "+input);
+            return;
+        }
+        System.out.printf("Analyzing %d data files with %d compute threads\n", dataFiles.size(), numThreads);
+
+        List<BatchResult> results = run(dataFiles);
+        Diagnostics.flush();
+
+        writeSummary(results);
+    }
+
+    /**
+     * Read, analyze and write parameters for each data file.
+     * @return - one result per data file, in the same order
+     */
+    List<BatchResult> run(List<Path> dataFiles) {
+
+        ExecutorService ioPool      = newIoExecutor();
+        ExecutorService computePool = Executors.newFixedThreadPool(numThreads);
+        Semaphore inFlight = new Semaphore(2 * numThreads);
+        resultCache = (resultCacheDir != null) ? new ResultCache(resultCacheDir, resultCacheMB << 20) : null;
+        config      = accel ? new CalibrateAccel().config() : new CalibrateOP().config();
+
+        List<CompletableFuture<BatchResult>> futures = new ArrayList<>();
+        try {
+            for (Path dataFile : dataFiles) {
+                inFlight.acquireUninterruptibly();
+                BatchResult result = new BatchResult();
+                result.dataFile = dataFile;
+                result.outFile  = outputFile(dataFile);
+                long start = System.nanoTime();
+
+                CompletableFuture<BatchResult> future = CompletableFuture
+                    .supplyAsync(() -> lookupResult(result), ioPool)
+                    .thenApplyAsync(cached -> cached ? result : analyze(result, readProfiles(dataFile)), computePool)
+                    .thenApplyAsync(this::writeParameters, ioPool)
+                    .exceptionally(e -> {
+                        System.out.println("BOO!! Failed to analyze "+dataFile+": "+e.getCause());
+                        return result;
+                    })
+                    .whenComplete((r, e) -> {
+                        result.elapsedNanos = System.nanoTime() - start;
+                        inFlight.release();
+                    });
+                futures.add(future);
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            ioPool.shutdown();
+            computePool.shutdown();
+        }
+
+        List<BatchResult> results = new ArrayList<>();
+        for (CompletableFuture<BatchResult> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * Fill in the result of a data file from the result cache.
+     * @return - true if it was there
+     */
+    private boolean lookupResult(BatchResult result) {
+        if (resultCache == null) { return false; }
+        result.resultKey = ResultCache.key(result.dataFile.toString(), config);
+        ResultCache.Entry cached = resultCache.get(result.resultKey);
+        if (cached == null) { return false; }
+        result.cached      = true;
+        result.read        = true;
+        result.numProfiles = cached.numProfiles;
+        result.valid       = cached.valid;
+        result.parameters  = cached.parameters;
+        return true;
+    }
+
+    private List<CalibProfile> readProfiles(Path dataFile) {
+        String fileName = dataFile.toString();
+        return useCache ? CalibrationCache.readCalibrationDataFile(fileName)
+                        : MappedCalibrationReader.readCalibrationDataFile(fileName);
+    }
+
+    private BatchResult analyze(BatchResult result, List<CalibProfile> profiles) {
+        if (profiles == null) { return result; }
+        result.read = true;
+        result.numProfiles = profiles.size();
+        // Files are analyzed at once, so each line names the file it is about
+        Diagnostics diagnostics = new Diagnostics(Diagnostics.CONSOLE, result.dataFile + ": ");
+        if (accel) {
+            CalibrateAccel calibrate = new CalibrateAccel();
+            calibrate.diagnostics = diagnostics;
+            result.valid = calibrate.analyze(profiles);
+            result.parameters = calibrate.msgOutFile.toString();
+        } else {
+            CalibrateOP calibrate = new CalibrateOP();
+            calibrate.diagnostics = diagnostics;
+            result.valid = calibrate.analyze(profiles);
+            result.parameters = calibrate.msgOutFile.toString();
+        }
+        return result;
+    }
+
+    private BatchResult writeParameters(BatchResult result) {
+        if (!result.read) { return result; }
+        if (result.cached) {
+            result.written = ResultCache.writeParameters(result.outFile.toString(), result.parameters);
+            return result;
+        }
+        if (resultCache != null) {
+            resultCache.put(result.resultKey, result.valid, result.numProfiles, result.parameters);
+        }
+        BufferedWriter writer = CalibrationFileHandler.openWriteFile(result.outFile.toString());
+        if (writer == null) { return result; }
+        long start = CalibrationMetrics.WRITE.start();
+        try {
+            writer.write(result.parameters);
+            writer.close();
+            CalibrationMetrics.WRITE.record(start);
+            result.written = true;
+        } catch (IOException e) {
+            System.out.printf("\nBOO! Failed to write to Output file %s.\n", result.outFile);
+        }
+        return result;
+    }
+
+    /**
+     * Write one line per data file to the summary file, and show totals.
+     */
+    private void writeSummary(List<BatchResult> results) {
+
+        StringBuilder summary = new StringBuilder();
+        int numFailed = 0;
+        int numCached = 0;
+        for (BatchResult result : results) {
+            if (result.cached) { numCached++; }
+            String status = !result.read                ? "UNREADABLE" :
+                            !result.written             ? "NOT_WRITTEN" :
+                            (result.numProfiles == 0)   ? "NO_PROFILES" :
+                            !result.valid               ? "INVALID_PROFILES" : "OK";
+            if (!status.equals("OK")) { numFailed++; }
+            summary.append(String.format("%s\t%s\t%d\t%.1fms\t%s\n", result.dataFile, status, result.numProfiles, result.elapsedNanos / 1e6,
+                                         result.parameters.trim().replace("\n", "; ")));
+        }
+
+        Path summaryFile = Paths.get((outDir != null) ? outDir : ".", accel ? "SummaryAccel.txt" : "SummaryOP.txt");
+        BufferedWriter writer = CalibrationFileHandler.openWriteFile(summaryFile.toString());
+        if (writer != null) {
+            try {
+                writer.write(summary.toString());
+                writer.close();
+            } catch (IOException e) {
+                System.out.printf("\nBOO! Failed to write to Summary file.\n");
+            }
+        }
+        System.out.printf("%d data files analyzed, %d from the result cache, %d with problems, summary in %s\n",
+                          results.size(), numCached, numFailed, summaryFile);
+    }
+
+    /**
+     * Return the parameter file name for a data file, e.g. CalibOP.txt -> CalibOP.ParametersOP.txt
+     */
+    private Path outputFile(Path dataFile) {
+        String name = dataFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0) ? name.substring(0, dot) : name;
+        String outName = base + (accel ? ".ParametersAccel.txt" : ".ParametersOP.txt");
+        Path dir = (outDir != null) ? Paths.get(outDir) : dataFile.toAbsolutePath().getParent();
+        return dir.resolve(outName);
+    }
+
+    /**
+     * List the data files of a directory (all *.txt files) or matching a glob such as logs/Calib*.txt
+     * Parameter and summary files written by an earlier batch run are left out.
+     * @return - sorted list of data files, or null if the directory can't be read
+     */
+    static List<Path> findDataFiles(String input) {
+
+        Path dir;
+        String pattern;
+        if (Files.isDirectory(Paths.get(input))) {
+            dir = Paths.get(input);
+            pattern = "*.txt";
+        } else {
+            Path path = Paths.get(input);
+            dir = (path.getParent() != null) ? path.getParent() : Paths.get(".");
+            pattern = path.getFileName().toString();
+        }
+        PathMatcher matcher = dir.getFileSystem().getPathMatcher("glob:" + pattern);
+        PathMatcher outputs = dir.getFileSystem().getPathMatcher("glob:{*.Parameters*.txt,Parameters*.txt,Summary*.txt}");
+
+        List<Path> dataFiles = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry) && matcher.matches(entry.getFileName()) && !outputs.matches(entry.getFileName())) {
+                    dataFiles.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            return null;
+        }
+        dataFiles.sort(null);
+        return dataFiles;
+    }
+
+    /**
+     * Return an executor for file reads and writes.
+     * Uses a virtual thread per task when the JVM supports them, else a cached thread pool.
+     */
+    static ExecutorService newIoExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Parse the commane line arugments
+     * @param args - Array of command line arguments
+     * @return     - false if the usage was asked for, so there is nothing to do
+     */
+    private boolean parseArgs(String[] args) {
+
+        for (int idx = 0; idx < args.length; idx++) {
+            String arg = args[idx];
+            if (arg.equals("--help") || arg.equals("-help")) {
+                System.out.println("Usage:");
+                System.out.println("CalibrateBatch [<DataDirectory> | <DataFileGlob>] | [[-]-help] |");
+                System.out.println("    [-accel] | [-cache] | [-threads <N>] | [-o <OutputDirectory>] | [-metrics] |");
+                System.out.println("    [-quiet] | [-verbose] | [-resultcache <CacheDirectory>] | [-resultcachemb <MB>]");
+                return false;
+            }
+            else if (arg.equals("-accel")) {
+                accel = true;
+            }
+            else if (arg.equals("-cache")) {
+                useCache = true;
+            }
+            else if (arg.equals("-metrics")) {
+                CalibrationMetrics.enable();
+            }
+            else if (arg.equals("-quiet")) {
+                Diagnostics.CONSOLE.level = Diagnostics.Level.ERROR;
+            }
+            else if (arg.equals("-verbose")) {
+                Diagnostics.CONSOLE.level = Diagnostics.Level.DEBUG;
+            }
+            else if (arg.equals("-threads") && (idx + 1 < args.length)) {
+                try {
+                    numThreads = Math.max(1, Integer.parseInt(args[++idx]));
+                } catch (NumberFormatException e) {
+                    System.out.println("BOO!! -threads needs a number, using "+numThreads);
+                }
+            }
+            else if (arg.equals("-o") && (idx + 1 < args.length)) {
+                outDir = args[++idx];
+            }
+            else if (arg.equals("-resultcache") && (idx + 1 < args.length)) {
+                resultCacheDir = args[++idx];
+            }
+            else if (arg.equals("-resultcachemb") && (idx + 1 < args.length)) {
+                try {
+                    resultCacheMB = Math.max(1, Long.parseLong(args[++idx]));
+                } catch (NumberFormatException e) {
+                    System.out.println("BOO!! -resultcachemb needs a number, using "+resultCacheMB);
+                }
+            }
+            else if ((idx == 0) && (arg.charAt(0) != '-')) {
+                input = arg;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Main method run at command line.
+     */
+    public static void main(String[] args) {
+        new CalibrateBatch(args);
+    }
+}
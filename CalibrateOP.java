@@ -9,210 +9,386 @@ import java.math.MathContext;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 
 
 /**
  * Class to perform calibration analysis.
  */
-public class CalibrateOP {
+public class CalibrateOP implements AnalysisStage<CalibrateOP.ProfileResult> {
 
     String dataFile = "CalibOP.txt";        // default data file name, can be overwritten from a command line argument.
     String outFile  = "ParametersOP.txt";   // default output file name, can be overwritten from a command line argument.
     
+    boolean useMappedReader = false;        // read the data file with MappedCalibrationReader, set by -mmap
+    boolean useParallelReader = false;      // read the data file with ParallelCalibrationReader, set by -parallel
+    boolean useCache = false;               // read the data file through CalibrationCache, set by -cache
+    boolean follow = false;                 // keep analyzing the data file as it is written, set by -follow
+    int numThreads = 1;                     // analyze profiles on this many threads, set by -threads
+    String resultCacheDir = null;           // reuse results of unchanged data files from here, set by -resultcache
+    long resultCacheMB = ResultCache.DEFAULT_MAX_MB;    // bound on the result cache, set by -resultcachemb
+    
     StringBuffer msgOutFile = new StringBuffer();
+    Diagnostics  diagnostics = Diagnostics.CONSOLE;  // where the analysis shows its progress, see CalibrationEngine
+    
+    // Error-checking flags. If any of these are asserted false then something
+    // is wrong with the calibration data provided. 
+    boolean allProfilesValid = true;        
+    boolean allProfilesRampUp = true;
+    int     numProfiles = 0;                // profiles applied, valid or not
+    
+    // Track the stopping distances from velocities in profile
+    List<Double>  fwdLeftMeasure = new ArrayList<>();
+    List<Integer> fwdLeftTicks   = new ArrayList<>();
+    List<Double>  bckLeftMeasure = new ArrayList<>();
+    List<Integer> bckLeftTicks   = new ArrayList<>();
+
+    List<Double>  fwdRightMeasure = new ArrayList<>();
+    List<Integer> fwdRightTicks   = new ArrayList<>();
+    List<Double>  bckRightMeasure = new ArrayList<>();
+    List<Integer> bckRightTicks   = new ArrayList<>();
+    
+    // Running sums of the velocity ratio integrals, forward and backward, with the
+    // left (LR) or right (RL) side leading, so finish() is cheap to call again
+    RunningSum fwdLR = new RunningSum();
+    RunningSum fwdRL = new RunningSum();
+    RunningSum bckLR = new RunningSum();
+    RunningSum bckRL = new RunningSum();
+    
+    // Set by finish()
+    double  fwdLRavg;
+    double  fwdRLavg;
+    double  bckLRavg;
+    double  bckRLavg;
+    boolean leftIsFwdOP;
+    boolean leftIsBckOP;
     
     int rampUpEndIdx = -1;
     int steadyIdx = -1;
     double steadyLeftVelocity;
     double steadyRightVelocity;
     double ratioV;
+    
+    // Change when a change to reading, checking or analyzing profiles changes the parameters,
+    // so results in a ResultCache are not reused
+    static final int ANALYZER_VERSION = 1;
+    
+    // The sides are taken to be equal once the velocity ratio reaches this
+    static final double EQUAL_RATIO = 0.97;
 
     
+    /**
+     * Class constructor for analyzing profiles that have already been read, see analyze().
+     */
+    CalibrateOP() {
+    }
+    
     /**
      * Class constructor, runs analysis of calibration data.
      */
     public CalibrateOP(String[] args){
     
-        // Error-checking flags. If any of these are asserted false then something
-        // is wrong with the calibration data provided. 
-        boolean allProfilesValid = true;        
-        boolean allProfilesRampUp = true;
-        
         // This checks the command line arguments and loads
         // parameters into the SettingsFrame mySettings.
-        parseArgs(args);
+        // If only the usage was asked for, there is nothing to analyze
+        if (!parseArgs(args)) { return; }
+        
+        // In follow mode the data file is still being written, update the
+        // parameters as each profile arrives
+        if (follow) {
+            followDataFile();
+            return;
+        }
+        
+        // If this data file has been analyzed the same way before, reuse the result
+        ResultCache resultCache = null;
+        String resultKey = null;
+        if (resultCacheDir != null) {
+            resultCache = new ResultCache(resultCacheDir, resultCacheMB << 20);
+            resultKey = ResultCache.key(dataFile, config());
+            ResultCache.Entry cached = resultCache.get(resultKey);
+            if (cached != null) {
+                diagnostics.info("Reusing cached result of %s\n%s", dataFile, cached.parameters);
+                if (!cached.valid) {
+                    diagnostics.error("\nBOO! Calibration data file has critical problems.\n");
+                } else {
+                    diagnostics.info("Success\n");
+                }
+                Diagnostics.flush();
+                ResultCache.writeParameters(outFile, cached.parameters);
+                return;
+            }
+        }
         
-        // Open, read & close calibration data file
-        // If there is a file problem or if there are no profiles, then simply exit
-        List<CalibProfile> calibProfiles = CalibrationFileHandler.readCalibrationDataFile(dataFile);
+        // Open calibration data file, profiles are read one at a time as they are analyzed
+        // If there is a file problem, then simply exit
+        Stream<CalibProfile> calibProfiles = openCalibrationDataFile();
         if (calibProfiles == null) { return; }
         
-        // Open calibration parameter file to write
+        // Analyze the profiles as they are read
+        CalibrationEngine engine = new CalibrationEngine(numThreads, Diagnostics.CONSOLE);
+        CalibrationEngine.OPResult result = engine.analyzeOP(calibProfiles::iterator);
+        calibProfiles.close();
+        
+        // Open calibration parameter file to write once the analysis is done, so the
+        // parameters of an earlier run stay in place while the data file is read
         // If there is a file problem, simply exit
         BufferedWriter writer = CalibrationFileHandler.openWriteFile(outFile);
         if (writer == null) { return; }
         
+        // Write and Close write file
+        long start = CalibrationMetrics.WRITE.start();
+        try {
+            writer.write(result.parameters);
+            writer.close();
+            CalibrationMetrics.WRITE.record(start);
+        } catch (IOException e) {
+            System.out.printf("\nBOO! Failed to write to Output file.\n");
+        }
+        if (resultCache != null) {
+            resultCache.put(resultKey, result.valid, result.numProfiles, result.parameters);
+        }
         
-        // Track the stopping distances from velocities in profile
-        List<Double>  fwdLeftMeasure = new ArrayList<>();
-        List<Integer> fwdLeftTicks   = new ArrayList<>();
-        List<Double>  bckLeftMeasure = new ArrayList<>();
-        List<Integer> bckLeftTicks   = new ArrayList<>();
 
-        List<Double>  fwdRightMeasure = new ArrayList<>();
-        List<Integer> fwdRightTicks   = new ArrayList<>();
-        List<Double>  bckRightMeasure = new ArrayList<>();
-        List<Integer> bckRightTicks   = new ArrayList<>();
+    }
+    
+    /**
+     * Analyze calibration profiles, filling msgOutFile with the calibration parameters.
+     * @param profiles - profiles to analyze, each is only looked at once
+     * @return         - true if all of the profiles were valid
+     */
+    boolean analyze(Iterable<CalibProfile> profiles) {
+    
+        // Iterate through profiles, on numThreads threads
+        ParallelProfileAnalysis.run(profiles, numThreads, this::analyzeOne, this::apply);
+        
+        return finish();
+    }
+    
+    /**
+     * What one profile adds to the analysis.
+     */
+    static class ProfileResult {
+        boolean valid;
+        boolean leftIsOP;
+        boolean forward;
+        double  integral;
+        String  sequence;
+        double  nominalPower;
+        StringBuilder messages = new StringBuilder();   // problems, shown when the result is applied
+    }
+    
+    /**
+     * Compensated (Kahan) sum and count of a series, like DoubleStream.sum() but added to
+     * one value at a time, so long follow sessions don't drift in the last bits.
+     */
+    static class RunningSum {
+        double sum;
+        double compensation;
+        int    count;
+        
+        void add(double value) {
+            double y = value - compensation;
+            double t = sum + y;
+            compensation = (t - sum) - y;
+            sum = t;
+            count++;
+        }
+        
+        /**
+         * Return the mean of the values added, NaN if there are none.
+         */
+        double mean() {
+            return sum / count;
+        }
         
-        List<Double>  fwdLR = new ArrayList<>();
-        List<Double>  bckLR = new ArrayList<>();
-        List<Double>  fwdRL = new ArrayList<>();
-        List<Double>  bckRL = new ArrayList<>();
+        void clear() {
+            sum = 0.0;
+            compensation = 0.0;
+            count = 0;
+        }
+    }
+    
+    
+    /**
+     * Analyze one calibration profile, adding its velocity ratio integral to the
+     * fwd/bck LR/RL sums.
+     */
+    void analyzeProfile(CalibProfile profile) {
+        apply(analyzeOne(profile));
+    }
+    
+    /**
+     * Add the result of one profile to the fwd/bck LR/RL sums.
+     * Results must be applied in profile order.
+     */
+    @Override
+    public void apply(ProfileResult result) {
+        numProfiles++;
+        if (!result.valid) {
+            diagnostics.error("%s", result.messages);
+            allProfilesValid = false;
+            return;
+        }
+        diagnostics.info("%s %5.2f %f\n", result.sequence, result.nominalPower, result.integral);
+        if (result.forward) {
+            if (result.leftIsOP) fwdLR.add(result.integral);
+            else                 fwdRL.add(result.integral);
+        } else {
+            if (result.leftIsOP) bckLR.add(result.integral);
+            else                 bckRL.add(result.integral);
+        }
+    }
+    
+    /**
+     * Find the velocity ratio integral of one calibration profile.
+     * Only looks at the profile, so profiles can be analyzed on several threads at once.
+     */
+    ProfileResult analyzeOne(CalibProfile profile) {
+        return analyzeOne(profile, ProfileValidator.check(profile));
+    }
+    
+    /**
+     * Find the velocity ratio integral of one calibration profile that has already been checked.
+     * @param problem - why the profile is not valid, or null if it is
+     */
+    @Override
+    public ProfileResult analyzeOne(CalibProfile profile, String problem) {
+        CalibrationEvents.ProfileAnalyzed event = new CalibrationEvents.ProfileAnalyzed();
+        event.begin();
+        ProfileResult result = analyzeProfile(profile, problem);
+        event.record("OP", profile, result.valid);
+        return result;
+    }
+    
+    private ProfileResult analyzeProfile(CalibProfile profile, String problem) {
+          
+        ProfileResult result = new ProfileResult();
+        StringBuilder messages = result.messages;
         
-        // Iterate through list of profiles
-        for (CalibProfile profile : calibProfiles) {
-              
 //            System.out.printf("lm=%f\n", profile.leftMeasure1);
-              
-            // Set up 5 arrays, containing the series of data values from the data file:
-            //
-            //      Timestamp
-            //      Left encoder
-            //      Left velocity
-            //      Right encoder
-            //      Right velocity
-            //  
-            int numPoints = profile.calibPoints.size();
-            //        
-            double[] ts = new double[numPoints];
-            int[]    le = new int   [numPoints];
-            double[] lv = new double[numPoints];
-            int[]    re = new int   [numPoints];
-            double[] rv = new double[numPoints];
-            int idx = 0;
-            //
-            for (CalibPoint cp : profile.calibPoints) {
-                ts[idx] = cp.timeStamp;
-                le[idx] = cp.leftEncoder;
-                lv[idx] = cp.leftVelocity;
-                re[idx] = cp.rightEncoder;
-                rv[idx] = cp.rightVelocity;
-                idx++;
-            }
-                        
-            
-            // Validity check for data
-            // If invalid, set profileIsValid flag
-            // As soon as any invalidity is found then this entire data set is bad, don't need to look for 
-            //   any other invalidities for the given profile
-            //
-            // The timestamp, and left,right encoders should all be strictly increasing.
-            // If a robot wasn't fully stopped it may show encoder readings from a previous run.
-            // Using data from a robot that wasn't stopped will give a bad regression.
-            // 
-            boolean profileIsValid = true;
-            for (int vdx = 1; vdx < numPoints; vdx++) {
-                if (ts[vdx] < ts[vdx-1]) {
-                    System.out.printf("BOO! power %f time %f at %d not increasing over time %f at %d\n", 
-                                        profile.nominalPower, ts[vdx], vdx, ts[vdx-1], vdx-1);
-                    profileIsValid = false;
-                    allProfilesValid = false;
-                    break;
-                }
-                if (le[vdx] < le[vdx-1]) {
-                    System.out.printf("BOO! power %f left encoder %d at %d not increasing over %d at %d\n", 
-                                        profile.nominalPower, le[vdx], vdx, le[vdx-1], vdx-1);
-                    profileIsValid = false;
-                    allProfilesValid = false;
-                    break;
+          
+        // The 5 columns of the profile, containing the series of data values from the data file:
+        //
+        //      Timestamp
+        //      Left encoder
+        //      Left velocity
+        //      Right encoder
+        //      Right velocity
+        //  
+        //        
+        double[] ts = profile.timeStamps;
+        double[] lv = profile.leftVelocities;
+        double[] rv = profile.rightVelocities;
+                    
+        
+        // Validity check for data, see ProfileValidator
+        boolean profileIsValid = (problem == null);
+        if (!profileIsValid) {
+            messages.append(problem);
+        }
+        // Check for sequence in profile
+        if (!profile.sequence.equals("LR") && !profile.sequence.equals("RL")) {
+            profileIsValid = false;
+        }
+        // if the data is invalid, then skip this profile
+        result.valid = profileIsValid;
+        if (!profileIsValid) {
+            return result;
+        }
+        
+        // Find integral of velocity ratio over time
+        long start = CalibrationMetrics.OP_INTEGRAL.start();
+        boolean equaled = false;
+        int tdx = 0;
+        double ratio;
+        double lastRatio = 1.0;
+        boolean leftIsOP = profile.sequence.equals("LR");
+        double integral = 0;
+        
+        // The columns are longer than the profile, only its numPoints points are looked at
+        while (!equaled && (tdx < profile.numPoints)) {
+            if ((lv[tdx] == 0.0) && (rv[tdx] == 0.0)) { ratio = 1.0; }
+            else {
+                if (leftIsOP) {
+                    ratio = rv[tdx]/lv[tdx];
                 }
-                if (re[vdx] < re[vdx-1]) {
-                    System.out.printf("BOO! power %f right encoder %d at %d not increasing over %d at %d\n", 
-                                        profile.nominalPower, re[vdx], vdx, re[vdx-1], vdx-1);
-                    profileIsValid = false;
-                    allProfilesValid = false;
-                    break;
-                }                    
-            }
-            // Check for sequence in profile
-            if (!profile.sequence.equals("LR") && !profile.sequence.equals("RL")) {
-                profileIsValid = false;
-                allProfilesValid = false;
-            }
-            // if the data is invalid, then terminate this iteration of the for-loop and
-            // move on to the next profile
-            if (!profileIsValid) {
-                continue;
-            }
-            
-            // Find integral of velocity ratio over time
-            boolean equaled = false;
-            int tdx = 0;
-            double ratio;
-            double lastRatio = 1.0;
-            boolean leftIsOP = profile.sequence.equals("LR");
-            double integral = 0;
-            
-            while (!equaled) {
-                if ((lv[tdx] == 0.0) && (rv[tdx] == 0.0)) { ratio = 1.0; }
                 else {
-                    if (leftIsOP) {
-                        ratio = rv[tdx]/lv[tdx];
-                    }
-                    else {
-                        ratio = lv[tdx]/rv[tdx];
-                    }
-                    equaled = ratio >= 0.97;
+                    ratio = lv[tdx]/rv[tdx];
                 }
-                
-                if (tdx > 0) {
-                    // timestamp of interval * ratio difference
-                    integral += (ts[tdx] - ts[tdx-1]) * (ratio + lastRatio)/2.0;
-                }                
-                tdx++;
-                lastRatio = ratio;
-                //System.out.printf("%f %f\n", ratio, integral);
+                equaled = ratio >= EQUAL_RATIO;
             }
-            System.out.printf("%s %5.2f %f\n", profile.sequence, profile.nominalPower, integral);
-            
-            if (profile.nominalPower > 0) {
-                if (leftIsOP) fwdLR.add(integral);
-                else          fwdRL.add(integral);
-            } else {
-                if (leftIsOP) bckLR.add(integral);
-                else          bckRL.add(integral);
-            }
-
             
+            if (tdx > 0) {
+                // timestamp of interval * ratio difference
+                integral += (ts[tdx] - ts[tdx-1]) * (ratio + lastRatio)/2.0;
+            }                
+            tdx++;
+            lastRatio = ratio;
+            //System.out.printf("%f %f\n", ratio, integral);
         }
+        CalibrationMetrics.OP_INTEGRAL.record(start);
         
+        // The sides never became equal, so the integral has no end
+        if (!equaled) {
+            messages.append(String.format("BOO! power %f %s velocity ratio never reached %.2f in %d points\n",
+                                          profile.nominalPower, profile.sequence, EQUAL_RATIO, profile.numPoints));
+            result.valid = false;
+            return result;
+        }
+        
+        result.leftIsOP     = leftIsOP;
+        result.forward      = profile.nominalPower > 0;
+        result.integral     = integral;
+        result.sequence     = profile.sequence;
+        result.nominalPower = profile.nominalPower;
+        return result;
+    }
+    
+    /**
+     * Consider the profiles analyzed so far as a whole, setting msgOutFile to the calibration
+     * parameters. Can be called again after more profiles have been analyzed.
+     * @return - true if all of the profiles were valid
+     */
+    @Override
+    public boolean finish() {
+    
+        msgOutFile.setLength(0);
         
         // Now consider the profiles as a whole...
         
-        double fwdLRavg = fwdLR.stream().mapToDouble(a -> a).sum() / fwdLR.size();
-        double fwdRLavg = fwdRL.stream().mapToDouble(a -> a).sum() / fwdRL.size();
-        double bckLRavg = bckLR.stream().mapToDouble(a -> a).sum() / bckLR.size();
-        double bckRLavg = bckRL.stream().mapToDouble(a -> a).sum() / bckRL.size();
-        System.out.printf("FLR:%f FRL:%f BLR:%f BRL:%f\n", fwdLRavg, fwdRLavg, bckLRavg, bckRLavg);
+        fwdLRavg = fwdLR.mean();
+        fwdRLavg = fwdRL.mean();
+        bckLRavg = bckLR.mean();
+        bckRLavg = bckRL.mean();
+        diagnostics.info("FLR:%f FRL:%f BLR:%f BRL:%f\n", fwdLRavg, fwdRLavg, bckLRavg, bckRLavg);
         
         String msg;
 
-        if (fwdLRavg >= fwdRLavg) {
-            msg = "LEFT_IS_FWD_OP = true\n";
-        } else {
-            msg = "LEFT_IS_FWD_OP = false\n";
+        // While following a data file a side is only written once profiles with the left and the
+        // right leading are in, until then the averages are NaN and the comparison means nothing
+        if (!follow || ((fwdLR.count > 0) && (fwdRL.count > 0))) {
+            leftIsFwdOP = (fwdLRavg >= fwdRLavg);
+            if (leftIsFwdOP) {
+                msg = "LEFT_IS_FWD_OP = true\n";
+            } else {
+                msg = "LEFT_IS_FWD_OP = false\n";
+            }
+            msgOutFile.append(msg);
+            diagnostics.info("%s", msg);
         }
-        msgOutFile.append(msg);
-        System.out.printf("%s", msg);
 
-        if (bckLRavg >= bckRLavg) {
-            msg = "LEFT_IS_BCK_OP = true\n";
-        } else {
-            msg = "LEFT_IS_BCK_OP = false\n";
+        if (!follow || ((bckLR.count > 0) && (bckRL.count > 0))) {
+            leftIsBckOP = (bckLRavg >= bckRLavg);
+            if (leftIsBckOP) {
+                msg = "LEFT_IS_BCK_OP = true\n";
+            } else {
+                msg = "LEFT_IS_BCK_OP = false\n";
+            }
+            msgOutFile.append(msg);
+            diagnostics.info("%s", msg);
         }
-        msgOutFile.append(msg);
-        System.out.printf("%s", msg);
         
 /*                
         // Do linear regression on ticks/measure for left, right; both forward, backward
@@ -246,32 +422,106 @@ public class CalibrateOP {
 */        
         
         if (!allProfilesValid) {
-            System.out.printf("\nBOO! Calibration data file has critical problems.\n");
+            diagnostics.error("\nBOO! Calibration data file has critical problems.\n");
         } else {
-            System.out.printf("Success\n");
+            diagnostics.info("Success\n");
         }
         
-        // Write and Close write file
+        return allProfilesValid;
+    }
+    
+    @Override
+    public String name() {
+        return "OP";
+    }
+    
+    @Override
+    public String outFile() {
+        return outFile;
+    }
+    
+    @Override
+    public String config() {
+        return "OP version=" + ANALYZER_VERSION + " equalRatio=" + EQUAL_RATIO;
+    }
+    
+    @Override
+    public String parameters() {
+        return msgOutFile.toString();
+    }
+    
+    /**
+     * Analyze the data file while it is being written.
+     * After each profile the averages and OP decisions are updated and the output file
+     * rewritten, so it always holds the parameters for the profiles seen so far.
+     */
+    private void followDataFile() {
+        CalibrationLogFollower follower = new CalibrationLogFollower(dataFile, false, profile -> {
+            analyzeProfile(profile);
+            finish();
+            writeOutFile();
+        });
+        follower.setRestartListener(this::reset);
+        try {
+            follower.follow(0);
+        } catch (IOException e) {
+            System.out.println(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Forget all profiles analyzed so far.
+     */
+    void reset() {
+        allProfilesValid = true;
+        numProfiles = 0;
+        fwdLR.clear();
+        fwdRL.clear();
+        bckLR.clear();
+        bckRL.clear();
+        msgOutFile.setLength(0);
+    }
+    
+    /**
+     * Write msgOutFile to the output file.
+     */
+    private void writeOutFile() {
+        BufferedWriter writer = CalibrationFileHandler.openWriteFile(outFile);
+        if (writer == null) { return; }
+        long start = CalibrationMetrics.WRITE.start();
         try {
             writer.write(msgOutFile.toString());
             writer.close();
+            CalibrationMetrics.WRITE.record(start);
         } catch (IOException e) {
             System.out.printf("\nBOO! Failed to write to Output file.\n");
         }
-        
-
+    }
+    
+    /**
+     * Open the calibration data file with the selected reader.
+     * @return - stream of profiles, or null if the file could not be read
+     */
+    private Stream<CalibProfile> openCalibrationDataFile() {
+        return CalibrationFileHandler.openCalibrationDataFile(dataFile, useCache, useParallelReader, useMappedReader);
     }
     
     /**
      * Parse the commane line arugments
      * @param args - Array of command line arguments
+     * @return     - false if the usage was asked for, so there is nothing to analyze
      */
-    private void parseArgs(String[] args) {
+    private boolean parseArgs(String[] args) {
     
         boolean setOutputFilename = false;
+        boolean setNumThreads = false;
+        boolean setResultCacheDir = false;
+        boolean setResultCacheMB = false;
         
         // If '--help' is any of the arguments then 
-        // show proper command line usage and exit
+        // show proper command line usage and stop
         for (String arg : args) {
             //
             // Always good to have an option to show what the valid command arguments are.
@@ -279,8 +529,9 @@ public class CalibrateOP {
             if (arg.equals("--help") || arg.equals("-help")) {
                 System.out.println("Usage:");
                 System.out.println("Calibration [<DataFileName>] | [[-]-help] |");
-                System.out.println("    [-o <OutputFileName>]");                                
-                System.exit(0);
+                System.out.println("    [-o <OutputFileName>] | [-mmap] | [-parallel] | [-cache] | [-follow] | [-threads <N>] | [-metrics] |");
+                System.out.println("    [-quiet] | [-verbose] | [-resultcache <CacheDirectory>] | [-resultcachemb <MB>]");                                
+                return false;
             }
             //
             // Look for -o command. 
@@ -293,6 +544,88 @@ public class CalibrateOP {
             if (arg.equals("-o")) {
                 setOutputFilename = true;                            
             }
+            //
+            // Look for -threads command.
+            // The next arg after -threads is the number of threads to analyze profiles on.
+            //
+            if (setNumThreads) {
+                try {
+                    numThreads = Math.max(1, Integer.parseInt(arg));
+                } catch (NumberFormatException e) {
+                    System.out.println("BOO!! -threads needs a number, using "+numThreads);
+                }
+                setNumThreads = false;
+            }
+            if (arg.equals("-threads")) {
+                setNumThreads = true;
+            }
+            //
+            // Look for -resultcache and -resultcachemb commands.
+            // The next arg is the result cache directory, or its bound in MB, see ResultCache.
+            //
+            if (setResultCacheDir) {
+                resultCacheDir = arg;
+                setResultCacheDir = false;
+            }
+            if (arg.equals("-resultcache")) {
+                setResultCacheDir = true;
+            }
+            if (setResultCacheMB) {
+                try {
+                    resultCacheMB = Math.max(1, Long.parseLong(arg));
+                } catch (NumberFormatException e) {
+                    System.out.println("BOO!! -resultcachemb needs a number, using "+resultCacheMB);
+                }
+                setResultCacheMB = false;
+            }
+            if (arg.equals("-resultcachemb")) {
+                setResultCacheMB = true;
+            }
+            //
+            // Look for -mmap command.
+            // Selects the memory-mapped reader instead of the line reader.
+            //
+            if (arg.equals("-mmap")) {
+                useMappedReader = true;
+            }
+            //
+            // Look for -parallel command.
+            // Selects the parallel reader, which splits the file over all processors.
+            //
+            if (arg.equals("-parallel")) {
+                useParallelReader = true;
+            }
+            //
+            // Look for -cache command.
+            // Loads the profiles from a binary cache next to the data file, made on first use.
+            //
+            if (arg.equals("-cache")) {
+                useCache = true;
+            }
+            //
+            // Look for -metrics command.
+            // Publishes stage timings and counters over JMX and shows them at exit.
+            //
+            if (arg.equals("-metrics")) {
+                CalibrationMetrics.enable();
+            }
+            //
+            // Look for -quiet and -verbose commands.
+            // Show only errors, or also each profile and regression, see Diagnostics.
+            //
+            if (arg.equals("-quiet")) {
+                Diagnostics.CONSOLE.level = Diagnostics.Level.ERROR;
+            }
+            if (arg.equals("-verbose")) {
+                Diagnostics.CONSOLE.level = Diagnostics.Level.DEBUG;
+            }
+            //
+            // Look for -follow command.
+            // Keeps reading the data file as it grows, until interrupted.
+            //
+            if (arg.equals("-follow")) {
+                follow = true;
+            }
             
             
             // Data file name can only be first argument.
@@ -301,6 +634,7 @@ public class CalibrateOP {
                 dataFile = args[0];
             }
         }
+        return true;
     }
        
     /**
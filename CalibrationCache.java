@@ -0,0 +1,310 @@
+package calibration;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+
+/**
+ * Binary cache of parsed calibration data files.
+ *
+ * The profiles parsed from a text log are written next to it, in a compact columnar file
+ * named <log>.calbin (or <log>.tickbin for tick files). Later reads of the same log load the
+ * profiles from the cache file with mapped reads instead of parsing the text.
+ *
+ * The cache file records the size, modification time and CRC32C of the log it was made from.
+ * If the size and time still match, the cache is used straight away. If only the time has
+ * changed the log is checksummed, and the cache is still used if the content is the same.
+ * Otherwise the log is parsed again and the cache file replaced.
+ *
+ * Layout, big-endian:
+ *      int    magic, int version, int tickFile
+ *      long   source size, long source modification time (ms), int source CRC32C
+ *      int    number of profiles
+ *      per profile:
+ *          double nominal power, acceleration throttle, battery voltage
+ *          short  sequence length, bytes of sequence (UTF-8)
+ *          double left measure 1, right measure 1, left measure 2, right measure 2
+ *          int    validity, int first invalid row (see CalibProfile.validity)
+ *          int    number of points
+ *          double[n] timestamps, int[n] left encoders, int[n] right encoders,
+ *          double[n] left velocities, double[n] right velocities
+ */
+public class CalibrationCache {
+
+    static final int MAGIC   = 0x43414C42;   // "CALB"
+    static final int VERSION = 2;
+
+    static final String CALIBRATION_SUFFIX = ".calbin";
+    static final String TICK_SUFFIX        = ".tickbin";
+
+    // Offset of the source modification time, and length of the cache file header
+    private static final int MTIME_OFFSET  = 20;
+    private static final int HEADER_LENGTH = 36;
+
+
+    /**
+     * Read data from calibration file, through its binary cache.
+     * @param fileName - name of calibration data file
+     * @return         - list of calibration data points
+     */
+    public static List<CalibProfile> readCalibrationDataFile(String fileName) {
+        return readProfiles(fileName, false);
+    }
+
+    /**
+     * Read data from tick calibration file, through its binary cache.
+     * @param fileName - name of calibration data file
+     * @return         - list of calibration data points
+     */
+    public static List<CalibProfile> readTickDataFile(String fileName) {
+        return readProfiles(fileName, true);
+    }
+
+    /**
+     * Return the name of the cache file for a log.
+     */
+    static Path cachePath(String fileName, boolean tickFile) {
+        return Paths.get(fileName + (tickFile ? TICK_SUFFIX : CALIBRATION_SUFFIX));
+    }
+
+    private static List<CalibProfile> readProfiles(String fileName, boolean tickFile) {
+
+        Path source = Paths.get(fileName);
+        Path cache  = cachePath(fileName, tickFile);
+
+        long size;
+        long mtime;
+        try {
+            size  = Files.size(source);
+            mtime = Files.getLastModifiedTime(source).toMillis();
+        } catch (IOException e) {
+            System.out.println(e);
+            return null;
+        }
+
+        // Try the cache first
+        if (Files.isRegularFile(cache)) {
+            CalibrationEvents.FileParsed event = new CalibrationEvents.FileParsed();
+            event.begin();
+            long start = CalibrationMetrics.READ.start();
+            try {
+                List<CalibProfile> calibprofiles = loadCache(cache, source, tickFile, size, mtime);
+                if (calibprofiles != null) {
+                    // No lines are parsed, the whole load is one run of the Read stage
+                    CalibrationMetrics.READ.record(start);
+                    event.record(fileName, "cache", calibprofiles.size(), 0);
+                    Diagnostics.CONSOLE.info("Reading Vector data file (cached): %s\n", fileName);
+                    return calibprofiles;
+                }
+            } catch (IOException | RuntimeException e) {
+                // a damaged cache file is simply rebuilt
+                System.out.println("Ignoring cache file "+cache+": "+e);
+            }
+        }
+
+        // Cache missing or out of date, parse the text and write a new cache
+        List<CalibProfile> calibprofiles = tickFile ? CalibrationFileHandler.readTickDataFile(fileName)
+                                                    : MappedCalibrationReader.readCalibrationDataFile(fileName);
+        if (calibprofiles == null) { return null; }
+        try {
+            writeCache(cache, source, tickFile, size, mtime, calibprofiles);
+        } catch (IOException e) {
+            System.out.println("BOO!! Failed to write cache file "+cache+": "+e);
+        }
+        return calibprofiles;
+    }
+
+    /**
+     * Load the profiles from a cache file.
+     * @return - the profiles, or null if the cache was not made from the current source
+     */
+    private static List<CalibProfile> loadCache(Path cache, Path source, boolean tickFile, long size, long mtime) throws IOException {
+
+        boolean touched = false;
+        List<CalibProfile> calibprofiles;
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH) { return null; }
+            CacheWindow window = new CacheWindow(channel);
+            ByteBuffer buf = window.need(HEADER_LENGTH);
+
+            if ((buf.getInt() != MAGIC) || (buf.getInt() != VERSION) || (buf.getInt() != (tickFile ? 1 : 0))) {
+                return null;
+            }
+            long cachedSize  = buf.getLong();
+            long cachedMtime = buf.getLong();
+            int  cachedCrc   = buf.getInt();
+            if (cachedSize != size) { return null; }
+            if (cachedMtime != mtime) {
+                // Touched or copied, check whether the content really changed
+                if (crc32c(source) != cachedCrc) { return null; }
+                touched = true;
+            }
+
+            int numProfiles = buf.getInt();
+            calibprofiles = new ArrayList<>(numProfiles);
+            for (int pdx = 0; pdx < numProfiles; pdx++) {
+                buf = window.need(3 * 8 + 2);
+                double nominalPower         = buf.getDouble();
+                double accelerationThrottle = buf.getDouble();
+                double batteryVoltage       = buf.getDouble();
+                byte[] sequenceBytes = new byte[buf.getShort() & 0xffff];
+                buf = window.need(sequenceBytes.length + 4 * 8 + 3 * 4);
+                buf.get(sequenceBytes);
+                String sequence = new String(sequenceBytes, StandardCharsets.UTF_8);
+                double leftMeasure1  = buf.getDouble();
+                double rightMeasure1 = buf.getDouble();
+                double leftMeasure2  = buf.getDouble();
+                double rightMeasure2 = buf.getDouble();
+                int validity   = buf.getInt();
+                int invalidIdx = buf.getInt();
+
+                int numPoints = buf.getInt();
+                buf = window.need(32L * numPoints);
+                CalibColumns columns = new CalibColumns(numPoints);
+                columns.numPoints = numPoints;
+                buf.asDoubleBuffer().get(columns.timeStamps);
+                buf.position(buf.position() + 8 * numPoints);
+                buf.asIntBuffer().get(columns.leftEncoders);
+                buf.position(buf.position() + 4 * numPoints);
+                buf.asIntBuffer().get(columns.rightEncoders);
+                buf.position(buf.position() + 4 * numPoints);
+                buf.asDoubleBuffer().get(columns.leftVelocities);
+                buf.position(buf.position() + 8 * numPoints);
+                buf.asDoubleBuffer().get(columns.rightVelocities);
+                buf.position(buf.position() + 8 * numPoints);
+
+                CalibProfile profile = new CalibProfile(columns, nominalPower, accelerationThrottle, batteryVoltage, sequence,
+                                                        leftMeasure1, rightMeasure1, leftMeasure2, rightMeasure2);
+                profile.validity   = validity;
+                profile.invalidIdx = invalidIdx;
+                calibprofiles.add(profile);
+            }
+        }
+
+        // Same content under a new time, record the time so the next read skips the checksum
+        if (touched) {
+            try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(8).putLong(0, mtime), MTIME_OFFSET);
+            } catch (IOException e) {
+                // the cache is still good, it just gets checksummed again next time
+            }
+        }
+        return calibprofiles;
+    }
+
+    /**
+     * Mapped window over a cache file, moved along as the profiles are loaded, so cache files
+     * larger than 2GB can be loaded too. Each part of a profile is read from a single window.
+     */
+    private static class CacheWindow {
+        final FileChannel channel;
+        long              base;         // offset of the window in the file
+        MappedByteBuffer  buf;
+
+        CacheWindow(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Return the window, moved on if needed so that it holds bytes from its position on.
+         * @param bytes - number of bytes about to be read
+         */
+        ByteBuffer need(long bytes) throws IOException {
+            if ((buf == null) || (buf.remaining() < bytes)) {
+                long position = (buf == null) ? 0 : base + buf.position();
+                long length   = Math.min(Math.max(MappedCalibrationReader.WINDOW_SIZE, bytes), channel.size() - position);
+                if (length < bytes) {
+                    throw new IOException("truncated at offset "+position);
+                }
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("profile longer than "+Integer.MAX_VALUE+" bytes at offset "+position);
+                }
+                buf  = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                base = position;
+            }
+            return buf;
+        }
+    }
+
+    /**
+     * Write the profiles to a cache file.
+     * The file is written under a temporary name and then moved into place, so a
+     * reader never sees a half written cache.
+     */
+    private static void writeCache(Path cache, Path source, boolean tickFile, long size, long mtime,
+                                   List<CalibProfile> calibprofiles) throws IOException {
+
+        int crc = crc32c(source);
+
+        // A temporary file of its own, in case another thread or process is writing the same cache
+        Path dir  = cache.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, cache.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(tickFile ? 1 : 0);
+                out.writeLong(size);
+                out.writeLong(mtime);
+                out.writeInt(crc);
+                out.writeInt(calibprofiles.size());
+                for (CalibProfile profile : calibprofiles) {
+                    out.writeDouble(profile.nominalPower);
+                    out.writeDouble(profile.accelerationThrottle);
+                    out.writeDouble(profile.batteryVoltage);
+                    byte[] sequenceBytes = profile.sequence.getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(sequenceBytes.length);
+                    out.write(sequenceBytes);
+                    out.writeDouble(profile.leftMeasure1);
+                    out.writeDouble(profile.rightMeasure1);
+                    out.writeDouble(profile.leftMeasure2);
+                    out.writeDouble(profile.rightMeasure2);
+                    out.writeInt(profile.validity);
+                    out.writeInt(profile.invalidIdx);
+
+                    int numPoints = profile.numPoints;
+                    out.writeInt(numPoints);
+                    for (int idx = 0; idx < numPoints; idx++) { out.writeDouble(profile.timeStamps[idx]); }
+                    for (int idx = 0; idx < numPoints; idx++) { out.writeInt(profile.leftEncoders[idx]); }
+                    for (int idx = 0; idx < numPoints; idx++) { out.writeInt(profile.rightEncoders[idx]); }
+                    for (int idx = 0; idx < numPoints; idx++) { out.writeDouble(profile.leftVelocities[idx]); }
+                    for (int idx = 0; idx < numPoints; idx++) { out.writeDouble(profile.rightVelocities[idx]); }
+                }
+            }
+            Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Return the CRC32C of a whole file.
+     */
+    static int crc32c(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MappedCalibrationReader.WINDOW_SIZE) {
+                long length = Math.min(MappedCalibrationReader.WINDOW_SIZE, size - position);
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+            }
+        }
+        return (int) crc.getValue();
+    }
+}
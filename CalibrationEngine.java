@@ -0,0 +1,226 @@
+package calibration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+/**
+ * Calibration analyses for use inside another program, e.g. test stand tooling.
+ *
+ * Profiles are given in memory or as an input stream in the format of a calibration data
+ * file, and the parameters come back as a typed result. Nothing is read from or written to
+ * a file, nothing is shown unless a console is given, and the program is never exited.
+ * What is shown on a console is written by the Diagnostics thread, each call waits until it
+ * has been written before returning.
+ *
+ * An engine only holds its settings, each call analyzes with new analyzers, so one engine
+ * can be used for any number of calls, also from several threads at once.
+ *
+ *      CalibrationEngine engine = new CalibrationEngine();
+ *      CalibrationEngine.OPResult op = engine.analyzeOP(profiles);
+ *      if (op.valid && op.leftIsFwdOP) { ... }
+ */
+public class CalibrationEngine {
+
+    final int         numThreads;      // analyze profiles on this many threads
+    final Diagnostics diagnostics;     // where the analyses show their progress
+
+
+    /**
+     * Parameters found by OP detection, see CalibrateOP.
+     */
+    public static class OPResult {
+        public boolean valid;           // all profiles were valid
+        public int     numProfiles;     // profiles analyzed
+        public boolean leftIsFwdOP;     // LEFT_IS_FWD_OP
+        public boolean leftIsBckOP;     // LEFT_IS_BCK_OP
+        public double  fwdLRavg;        // average velocity ratio integrals, forward and backward,
+        public double  fwdRLavg;        // with the left (LR) or right (RL) side leading
+        public double  bckLRavg;
+        public double  bckRLavg;
+        public String  parameters;      // as written to the parameter file
+    }
+
+    /**
+     * Parameters found by the acceleration throttle analysis, see CalibrateAccel.
+     */
+    public static class AccelResult {
+        public boolean valid;           // all profiles were valid
+        public int     numProfiles;     // profiles analyzed
+        public double  maxFwdPwrAccel;  // MAX_FWD_PWR_ACCEL
+        public double  maxBckPwrAccel;  // MAX_BCK_PWR_ACCEL
+        public String  parameters;      // as written to the parameter file
+    }
+
+    /**
+     * Parameters of all analyses, found on one pass over the profiles.
+     */
+    public static class Result {
+        public boolean     valid;       // all profiles were valid for every analysis
+        public OPResult    op;
+        public AccelResult accel;
+    }
+
+
+    /**
+     * Class constructor, analyzes on the calling thread and shows nothing.
+     */
+    public CalibrationEngine() {
+        this(1, (PrintStream) null);
+    }
+
+    /**
+     * Class constructor.
+     * @param numThreads - analyze profiles on this many threads, 1 analyzes on the calling thread
+     * @param console    - where the analyses show their progress, or null to show nothing
+     */
+    public CalibrationEngine(int numThreads, PrintStream console) {
+        this(numThreads, (console != null) ? new Diagnostics(console) : new Diagnostics(null, Diagnostics.Level.OFF));
+    }
+
+    /**
+     * Class constructor.
+     * @param numThreads  - analyze profiles on this many threads, 1 analyzes on the calling thread
+     * @param diagnostics - where the analyses show their progress
+     */
+    CalibrationEngine(int numThreads, Diagnostics diagnostics) {
+        this.numThreads  = Math.max(1, numThreads);
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Find which side is the outside of a turn (OP), forward and backward.
+     * @param profiles - profiles to analyze, each is only looked at once
+     */
+    public OPResult analyzeOP(Iterable<CalibProfile> profiles) {
+        CalibrateOP op = newOP();
+        op.analyze(profiles);
+        Diagnostics.flush();
+        return opResult(op);
+    }
+
+    /**
+     * Find which side is the outside of a turn (OP), forward and backward.
+     * @param input - calibration data, closed when done
+     */
+    public OPResult analyzeOP(InputStream input) throws IOException {
+        try (Stream<CalibProfile> profiles = CalibrationFileHandler.streamCalibrationData(input)) {
+            return analyzeOP(profiles::iterator);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Find the highest acceleration throttle without too much wheel slip, forward and backward.
+     * @param profiles - profiles to analyze, each is only looked at once
+     */
+    public AccelResult analyzeAccel(Iterable<CalibProfile> profiles) {
+        CalibrateAccel accel = newAccel();
+        accel.analyze(profiles);
+        Diagnostics.flush();
+        return accelResult(accel);
+    }
+
+    /**
+     * Find the highest acceleration throttle without too much wheel slip, forward and backward.
+     * @param input - calibration data, closed when done
+     */
+    public AccelResult analyzeAccel(InputStream input) throws IOException {
+        try (Stream<CalibProfile> profiles = CalibrationFileHandler.streamCalibrationData(input)) {
+            return analyzeAccel(profiles::iterator);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Run all analyses on one pass over the profiles, see CalibrationPipeline.
+     * @param profiles - profiles to analyze, each is only looked at once
+     */
+    public Result analyze(Iterable<CalibProfile> profiles) {
+        CalibrateOP    op    = newOP();
+        CalibrateAccel accel = newAccel();
+        List<AnalysisStage<?>> stages = new ArrayList<>();
+        stages.add(op);
+        stages.add(accel);
+        CalibrationPipeline pipeline = new CalibrationPipeline(stages, numThreads);
+        pipeline.diagnostics = diagnostics;
+
+        Result result = new Result();
+        result.valid = pipeline.run(profiles);
+        Diagnostics.flush();
+        result.op    = opResult(op);
+        result.accel = accelResult(accel);
+        return result;
+    }
+
+    /**
+     * Run all analyses on one pass over the profiles, see CalibrationPipeline.
+     * @param input - calibration data, closed when done
+     */
+    public Result analyze(InputStream input) throws IOException {
+        try (Stream<CalibProfile> profiles = CalibrationFileHandler.streamCalibrationData(input)) {
+            return analyze(profiles::iterator);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private CalibrateOP newOP() {
+        CalibrateOP op = new CalibrateOP();
+        op.numThreads = numThreads;
+        op.diagnostics = diagnostics;
+        return op;
+    }
+
+    private CalibrateAccel newAccel() {
+        CalibrateAccel accel = new CalibrateAccel();
+        accel.numThreads = numThreads;
+        accel.diagnostics = diagnostics;
+        return accel;
+    }
+
+    private static OPResult opResult(CalibrateOP op) {
+        OPResult result = new OPResult();
+        result.valid       = op.allProfilesValid;
+        result.numProfiles = op.numProfiles;
+        result.leftIsFwdOP = op.leftIsFwdOP;
+        result.leftIsBckOP = op.leftIsBckOP;
+        result.fwdLRavg    = op.fwdLRavg;
+        result.fwdRLavg    = op.fwdRLavg;
+        result.bckLRavg    = op.bckLRavg;
+        result.bckRLavg    = op.bckRLavg;
+        result.parameters  = op.parameters();
+        return result;
+    }
+
+    private static AccelResult accelResult(CalibrateAccel accel) {
+        AccelResult result = new AccelResult();
+        result.valid          = accel.allProfilesValid;
+        result.numProfiles    = accel.numProfiles;
+        result.maxFwdPwrAccel = accel.maxFwdPwrAccel;
+        result.maxBckPwrAccel = accel.maxBckPwrAccel;
+        result.parameters     = accel.parameters();
+        return result;
+    }
+
+
+    /**
+     * Runs all analyses on a data file given as the first argument, or on standard input.
+     */
+    public static void main(String[] args) throws IOException {
+        CalibrationEngine engine = new CalibrationEngine();
+        InputStream input = (args.length > 0) ? CompressedLogInput.open(args[0]) : System.in;
+        Result result = engine.analyze(input);
+        System.out.printf("valid = %b\n", result.valid);
+        System.out.print(result.op.parameters);
+        System.out.print(result.accel.parameters);
+    }
+}
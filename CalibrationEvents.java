@@ -0,0 +1,169 @@
+package calibration;
+
+import java.io.File;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Java Flight Recorder events of a calibration run, to line up allocation and GC pressure with
+ * the files, profiles and fits that caused them in JDK Mission Control.
+ *
+ *      calibration.FileParsed      - a data file read by one of the readers
+ *      calibration.ProfileAnalyzed - a profile analyzed by CalibrateOP or CalibrateAccel
+ *      calibration.RegressionFit   - a regression fitted to a series
+ *
+ * Each event is timed from begin() to record(). record() only fills in the fields when the
+ * event is wanted by a recording, so without one an event costs next to nothing and they can
+ * stay on in production runs. To record them:
+ *
+ *      java -XX:StartFlightRecording=filename=calib.jfr calibration.CalibrateOP CalibOP.txt
+ *      jfr print --events calibration.ProfileAnalyzed calib.jfr
+ */
+public class CalibrationEvents {
+
+    /**
+     * A data file read by one of the readers.
+     * A streamed file is timed until its stream is closed, so it includes the analysis of its profiles.
+     */
+    @Name("calibration.FileParsed")
+    @Label("File Parsed")
+    @Category("Calibration")
+    @Description("A calibration data file read into profiles")
+    @StackTrace(false)
+    public static class FileParsed extends Event {
+
+        @Label("File Name")
+        String fileName;
+
+        @Label("Reader")
+        @Description("text, stream, mapped, parallel or cache")
+        String reader;
+
+        @Label("Bytes")
+        @Description("Size of the file on disk")
+        long bytes;
+
+        @Label("Profiles")
+        int profiles;
+
+        @Label("Lines")
+        @Description("Lines parsed, 0 for a cache load")
+        long lines;
+
+        /**
+         * End the event and commit it if it is wanted.
+         * @param fileName - name of the file, or null for a stream
+         * @param reader   - reader that read it
+         * @param profiles - number of profiles read
+         * @param lines    - number of lines parsed, 0 if not counted
+         */
+        void record(String fileName, String reader, int profiles, long lines) {
+            if (!shouldCommit()) { return; }
+            this.fileName = fileName;
+            this.reader   = reader;
+            this.bytes    = (fileName == null) ? 0 : new File(fileName).length();
+            this.profiles = profiles;
+            this.lines    = lines;
+            commit();
+        }
+    }
+
+    /**
+     * A profile analyzed by one of the analysis stages.
+     */
+    @Name("calibration.ProfileAnalyzed")
+    @Label("Profile Analyzed")
+    @Category("Calibration")
+    @Description("A calibration profile analyzed by CalibrateOP or CalibrateAccel")
+    @StackTrace(false)
+    public static class ProfileAnalyzed extends Event {
+
+        @Label("Analysis")
+        String analysis;
+
+        @Label("Nominal Power")
+        double nominalPower;
+
+        @Label("Sequence")
+        String sequence;
+
+        @Label("Acceleration Throttle")
+        double accelerationThrottle;
+
+        @Label("Points")
+        int points;
+
+        @Label("Profile Duration (ms)")
+        @Description("Time from the first to the last point of the profile")
+        double profileDuration;
+
+        @Label("Valid")
+        boolean valid;
+
+        /**
+         * End the event and commit it if it is wanted.
+         * @param analysis - "OP" or "Accel"
+         * @param profile  - the profile analyzed
+         * @param valid    - true if the profile was used
+         */
+        void record(String analysis, CalibProfile profile, boolean valid) {
+            if (!shouldCommit()) { return; }
+            this.analysis             = analysis;
+            this.nominalPower         = profile.nominalPower;
+            this.sequence             = profile.sequence;
+            this.accelerationThrottle = profile.accelerationThrottle;
+            this.points               = profile.numPoints;
+            this.profileDuration      = (profile.numPoints > 0)
+                                      ? profile.timeStamps[profile.numPoints-1] - profile.timeStamps[0] : 0.0;
+            this.valid                = valid;
+            commit();
+        }
+    }
+
+    /**
+     * A regression fitted to one series.
+     */
+    @Name("calibration.RegressionFit")
+    @Label("Regression Fit")
+    @Category("Calibration")
+    @Description("A least squares fit of one series")
+    @StackTrace(false)
+    public static class RegressionFit extends Event {
+
+        @Label("Method")
+        @Description("linear, batch-linear, polynomial, accumulated or slip")
+        String method;
+
+        @Label("Degree")
+        int degree;
+
+        @Label("Points")
+        long points;
+
+        @Label("R^2")
+        @Description("NaN if the fit failed or does not work it out")
+        double rSquared;
+
+        /**
+         * End the event and commit it if it is wanted.
+         * @param method   - which fit
+         * @param degree   - degree of the polynomial
+         * @param points   - number of points fitted
+         * @param rSquared - R^2 of the fit
+         */
+        void record(String method, int degree, long points, double rSquared) {
+            if (!shouldCommit()) { return; }
+            this.method   = method;
+            this.degree   = degree;
+            this.points   = points;
+            this.rSquared = rSquared;
+            commit();
+        }
+    }
+}
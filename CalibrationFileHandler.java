@@ -2,150 +2,130 @@ package calibration;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 public class CalibrationFileHandler {
     // readCalibrationDataFile
+    // readTickDataFile
+    // streamCalibrationDataFile
+    // streamTickDataFile
+    // streamCalibrationData
+    // openCalibrationDataFile
     // openWriteFile
         
         
     /**
      * Read data from calibration file.
+     * gzip and zstd compressed files are decompressed as they are read.
      * @param fileName - name of calibration data file
      * @return         - list of calibration data points
      */
     public static List<CalibProfile> readCalibrationDataFile(String fileName) {
+        return readProfiles(fileName, false);
+    }
         
-        List<CalibProfile> calibprofiles = new ArrayList<>();
-        List<CalibPoint> calibpoints = new ArrayList<>();
+    /**
+     * Read data from tick calibration file.
+     * @param fileName - name of calibration data file
+     * @return         - list of calibration data points
+     */
+    public static List<CalibProfile> readTickDataFile(String fileName) {
+        return readProfiles(fileName, true);
+    }
         
-        BufferedReader reader;
-        String[] chunks;
-        String[] subchunks;
+    /**
+     * Stream the profiles of a calibration file.
+     * Each profile is handed on as soon as its "Stopped" line is read, so only one
+     * profile is held in memory at a time. The stream must be closed to close the file.
+     * @param fileName - name of calibration data file
+     * @return         - stream of calibration profiles
+     */
+    public static Stream<CalibProfile> streamCalibrationDataFile(String fileName) {
+        return streamProfiles(fileName, false);
+    }
         
-        double batteryVoltage = 0.0;        
-        double nominalPower   = 0.0;
-        double accelerationThrottle = 1.0;
-        String sequence       = "";
-        double leftMeasure1   = 0.0;
-        double leftMeasure2   = 0.0;
-        double rightMeasure1  = 0.0;
-        double rightMeasure2  = 0.0;
-        boolean acquireData   = false;
+    /**
+     * Stream the profiles of a tick calibration file.
+     * Each profile is handed on as soon as its "IMU heading at End" line is read.
+     * The stream must be closed to close the file.
+     * @param fileName - name of calibration data file
+     * @return         - stream of calibration profiles
+     */
+    public static Stream<CalibProfile> streamTickDataFile(String fileName) {
+        return streamProfiles(fileName, true);
+    }
+        
+    /**
+     * Stream the profiles of calibration data that is not in a file, e.g. sent over a socket.
+     * Nothing is shown while reading. Closing the stream closes the input.
+     * @param input - calibration data, in the format of a calibration data file
+     * @return      - stream of calibration profiles
+     */
+    public static Stream<CalibProfile> streamCalibrationData(InputStream input) {
+        return streamProfiles(new BufferedReader(new InputStreamReader(input)), null, false);
+    }
+        
+    /**
+     * Open a calibration file with the selected reader.
+     * The line reader streams the profiles as they are read, the others read the whole
+     * file first. The stream must be closed to close the file.
+     * @param fileName          - name of calibration data file
+     * @param useCache          - read through CalibrationCache
+     * @param useParallelReader - read with ParallelCalibrationReader
+     * @param useMappedReader   - read with MappedCalibrationReader
+     * @return                  - stream of calibration profiles, or null if the file could not be read
+     */
+    public static Stream<CalibProfile> openCalibrationDataFile(String fileName, boolean useCache,
+                                                               boolean useParallelReader, boolean useMappedReader) {
+        List<CalibProfile> calibProfiles;
+        if (useCache) {
+            calibProfiles = CalibrationCache.readCalibrationDataFile(fileName);
+        } else if (useParallelReader) {
+            calibProfiles = ParallelCalibrationReader.readCalibrationDataFile(fileName);
+        } else if (useMappedReader) {
+            calibProfiles = MappedCalibrationReader.readCalibrationDataFile(fileName);
+        } else {
+            return streamCalibrationDataFile(fileName);
+        }
+        return (calibProfiles == null) ? null : calibProfiles.stream();
+    }
+        
+    /**
+     * Read all profiles of a file into a list.
+     */
+    private static List<CalibProfile> readProfiles(String fileName, boolean tickFile) {
+        
+        List<CalibProfile> calibprofiles = new ArrayList<>();
+        CalibProfileParser parser = new CalibProfileParser(tickFile);
+        CalibrationEvents.FileParsed event = new CalibrationEvents.FileParsed();
+        event.begin();
 
         try {
-            reader = new BufferedReader(new FileReader(fileName));
-            System.out.println("Reading Vector data file: "+fileName);
-            int lineNum = 1;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(CompressedLogInput.open(fileName)));
+            Diagnostics.CONSOLE.info("Reading Vector data file: %s\n", fileName);
+            long start = CalibrationMetrics.READ.start();
             String line = reader.readLine();
             while (line != null) {
-                chunks = line.split("\t");
-                
-                // looking for something like:
-                // 005.123 : Robot battery voltage = 12.687
-                if (chunks[0].contains("battery voltage")) {
-                    subchunks = chunks[0].split("=");
-                    batteryVoltage = Double.parseDouble(subchunks[1]);
-                }
-                // looking for something like:
-                // 005.123 : Nominal power: 0.40
-                if (chunks[0].contains("power:")) {
-                    subchunks = chunks[0].split(":");
-                    if (subchunks.length == 3) {
-                        //System.out.println(subchunks[0]);
-                        //System.out.println(subchunks[1]);
-                        nominalPower = Double.parseDouble(subchunks[2]);
-                    }
-                }
-                // looking for something like:
-                // 005.123 : IMU heading at Begin: -0.000000
-                if (chunks[0].contains("IMU") && chunks[0].contains("Begin")) {
-                    calibpoints = new ArrayList<>();
-                    acquireData = true;
-                }
-                // looking for something like:
-                // 005.123 : 
-                if (chunks[0].contains("Stopped")) {
-//                    System.out.println(nominalPower);
-                    CalibProfile profile = new CalibProfile(calibpoints, nominalPower, accelerationThrottle, batteryVoltage, sequence, leftMeasure1, rightMeasure1, leftMeasure2, rightMeasure2 );
+                CalibProfile profile = parser.parseLine(line);
+                if (profile != null) {
                     calibprofiles.add(profile);
-                    acquireData = false;
-                }
-                // looking for something like:
-                // 005.123 : Left Measure : 0.4
-                if (chunks[0].contains("Left Measure :")) {
-                    subchunks = chunks[0].split(":");
-                    if (subchunks.length == 3) {
-                        leftMeasure1 = Double.parseDouble(subchunks[2]);
-//                        System.out.println(leftMeasure1);
-                    }
-                }
-                // looking for something like:
-                // 005.123 : Right Measure : 0.4
-                if (chunks[0].contains("Right Measure :")) {
-                    subchunks = chunks[0].split(":");
-                    if (subchunks.length == 3) {
-                        rightMeasure1 = Double.parseDouble(subchunks[2]);
-                    }
-                }
-                // looking for something like:
-                // 005.123 : Left Measure2 : 0.4
-                if (chunks[0].contains("Left Measure2 :")) {
-                    subchunks = chunks[0].split(":");
-                    if (subchunks.length == 3) {
-                        leftMeasure2 = Double.parseDouble(subchunks[2]);
-                    }
-                }
-                // looking for something like:
-                // 005.123 : Right Measure2 : 0.4
-                if (chunks[0].contains("Right Measure2 :")) {
-                    subchunks = chunks[0].split(":");
-                    if (subchunks.length == 3) {
-                        rightMeasure2 = Double.parseDouble(subchunks[2]);
-                    }
-                }
-                // looking for something like:
-                // 005.123 : Sequence : LR
-                if (chunks[0].contains("Sequence:")) {
-                    subchunks = chunks[0].split(":");
-                    if (subchunks.length == 3) {
-                        sequence = subchunks[2].trim();
-//                        System.out.println(sequence);
-                    }
+                    CalibrationMetrics.READ.record(start);
+                    start = CalibrationMetrics.READ.start();
                 }
-                // looking for something like:
-                // 005.123 : Acceleration throttle : 0.001
-                if (chunks[0].contains("Acceleration throttle:")) {
-                    subchunks = chunks[0].split(":");
-                    if (subchunks.length == 3) {
-                        accelerationThrottle = Double.parseDouble(subchunks[2]);
-                    }
-                }
-                
-                // looking for something like:
-                // 005.123 : \t  50.000\t  20\t   20\t 0.520\t 0.440
-                if (acquireData && (chunks.length == 6)) {
-                    try {
-                    
-                        double ts = Double.parseDouble(chunks[1]);      // timeStamp
-                        int    le = Integer.parseInt(chunks[2].trim()); // left encoder
-                        int    re = Integer.parseInt(chunks[3].trim()); // right encoder
-                        double lv = Double.parseDouble(chunks[4]);      // left velocity
-                        double rv = Double.parseDouble(chunks[5]);      // right velocity
-                        CalibPoint cpt = new CalibPoint( ts, le, re, lv, rv );
-                        calibpoints.add(cpt);
-                        
-                    } catch ( NumberFormatException | NullPointerException e) { 
-                        //e.printStackTrace(); 
-                    }
-                }   
                 line = reader.readLine();
             }
             reader.close();
@@ -154,95 +134,86 @@ public class CalibrationFileHandler {
             System.out.println(e);
             return null;
         }
+        finally {
+            countLines(parser);
+            event.record(fileName, "text", calibprofiles.size(), parser.numLines);
+        }
         return calibprofiles;
     }
         
     /**
-     * Read data from tick calibration file.
-     * @param fileName - name of calibration data file
-     * @return         - list of calibration data points
+     * Open a file and stream its profiles as they are parsed.
+     * A read error part way through the file is thrown as an UncheckedIOException.
      */
-    public static List<CalibProfile> readTickDataFile(String fileName) {
-        
-        List<CalibProfile> calibprofiles = new ArrayList<>();
-        List<CalibPoint> calibpoints = new ArrayList<>();
+    private static Stream<CalibProfile> streamProfiles(String fileName, boolean tickFile) {
         
         BufferedReader reader;
-        String[] chunks;
-        String[] subchunks;
-        
-        double batteryVoltage = 0.0;        
-        double nominalPower   = 0.0;
-        boolean acquireData   = false;
-
         try {
-            reader = new BufferedReader(new FileReader(fileName));
-            System.out.println("Reading Vector data file: "+fileName);
-            int lineNum = 1;
-            String line = reader.readLine();
-            while (line != null) {
-                chunks = line.split("\t");
-                
-                // looking for something like:
-                // 005.123 : Robot battery voltage = 12.687
-                if (chunks[0].contains("battery voltage")) {
-                    subchunks = chunks[0].split("=");
-                    batteryVoltage = Double.parseDouble(subchunks[1]);
-                }
-                // looking for something like:
-                // 005.123 : Nominal power: 0.40
-                if (chunks[0].contains("Nominal power:")) {
-                    subchunks = chunks[0].split(":");
-                    if (subchunks.length == 3) {
-                        //System.out.println(subchunks[0]);
-                        //System.out.println(subchunks[1]);
-                        nominalPower = Double.parseDouble(subchunks[2]);
-                    }
-                }
-                // looking for something like:
-                // 005.123 : IMU heading at Begin: -0.000000
-                if (chunks[0].contains("IMU") && chunks[0].contains("Begin")) {
-                    calibpoints = new ArrayList<>();
-                    acquireData = true;
-                }
-                // looking for something like:
-                // 005.123 : IMU heading at Begin: -1.000000
-                if (chunks[0].contains("IMU") && chunks[0].contains("End")) {
-                    System.out.println(nominalPower);
-                    CalibProfile profile = new CalibProfile(calibpoints, nominalPower, batteryVoltage );
-                    calibprofiles.add(profile);
-                    acquireData = false;
-                }
-                
-                // looking for something like:
-                // 005.123 : \t  50.000\t  20\t   20\t 0.520\t 0.440
-                if (acquireData && (chunks.length == 6)) {
-                    try {
-                    
-                        double ts = Double.parseDouble(chunks[1]);      // timeStamp
-                        int    le = Integer.parseInt(chunks[2].trim()); // left encoder
-                        int    re = Integer.parseInt(chunks[3].trim()); // right encoder
-                        double lv = Double.parseDouble(chunks[4]);      // left velocity
-                        double rv = Double.parseDouble(chunks[5]);      // right velocity
-                        CalibPoint cpt = new CalibPoint( ts, le, re, lv, rv );
-                        calibpoints.add(cpt);
-                        
-                    } catch ( NumberFormatException | NullPointerException e) { 
-                        //e.printStackTrace(); 
-                    }
-                }   
-                line = reader.readLine();
-            }
-            reader.close();
+            reader = new BufferedReader(new InputStreamReader(CompressedLogInput.open(fileName)));
+            Diagnostics.CONSOLE.info("Reading Vector data file: %s\n", fileName);
         }
         catch (IOException e) { 
             System.out.println(e);
             return null;
         }
-        return calibprofiles;
+        return streamProfiles(reader, fileName, tickFile);
     }
         
+    /**
+     * Stream the profiles of a reader as they are parsed.
+     * @param fileName - name of the file being read, or null, for CalibrationEvents
+     */
+    private static Stream<CalibProfile> streamProfiles(BufferedReader reader, String fileName, boolean tickFile) {
+        
+        CalibProfileParser parser = new CalibProfileParser(tickFile);
+        CalibrationEvents.FileParsed event = new CalibrationEvents.FileParsed();
+        int[] numProfiles = {0};
+        event.begin();
         
+        Spliterator<CalibProfile> profiles = new Spliterators.AbstractSpliterator<CalibProfile>(
+                Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super CalibProfile> action) {
+                try {
+                    long start = CalibrationMetrics.READ.start();
+                    String line = reader.readLine();
+                    while (line != null) {
+                        CalibProfile profile = parser.parseLine(line);
+                        if (profile != null) {
+                            CalibrationMetrics.READ.record(start);
+                            numProfiles[0]++;
+                            action.accept(profile);
+                            return true;
+                        }
+                        line = reader.readLine();
+                    }
+                    return false;
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return StreamSupport.stream(profiles, false).onClose(() -> {
+            countLines(parser);
+            event.record(fileName, "stream", numProfiles[0], parser.numLines);
+            try {
+                reader.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        });
+    }
+        
+        
+        
+    /**
+     * Add the lines and rejected rows of a parser to CalibrationMetrics.
+     */
+    static void countLines(CalibProfileParser parser) {
+        CalibrationMetrics.COUNTERS.linesRead.add(parser.numLines);
+        CalibrationMetrics.COUNTERS.rowsRejected.add(parser.rowsRejected);
+    }
         
     /**
      * Open a file to write to.
@@ -0,0 +1,194 @@
+package calibration;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Follows a calibration data file while it is being written, like tail -f.
+ *
+ * New bytes are read from the last offset whenever the WatchService reports the file has
+ * changed (and at least every POLL_MILLIS, since some file systems report changes late).
+ * Complete lines are handed to a CalibProfileParser and each profile is passed to the
+ * consumer as soon as its "Stopped" (or "IMU ... End") line arrives.
+ *
+ * If the file shrinks or is replaced, the restart listener is told and the file is read
+ * again from the start.
+ */
+public class CalibrationLogFollower {
+
+    static final long POLL_MILLIS = 500;
+
+    private final Path path;
+    private final boolean tickFile;
+    private final Consumer<CalibProfile> consumer;
+    private Runnable restartListener = () -> { };
+
+    private CalibProfileParser parser;
+    private FileChannel channel;
+    private long offset;
+
+    // Bytes of the line that has only been partly written so far
+    private byte[] pending = new byte[256];
+    private int    pendingLength;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1 << 16);
+
+    private volatile boolean stopped = false;
+
+
+    /**
+     * Primary class constructor.
+     * @param fileName - name of calibration data file to follow
+     * @param tickFile - true for tick calibration files, false for calibration files
+     * @param consumer - called with each profile as it is completed
+     */
+    public CalibrationLogFollower(String fileName, boolean tickFile, Consumer<CalibProfile> consumer) {
+        this.path     = Paths.get(fileName).toAbsolutePath();
+        this.tickFile = tickFile;
+        this.consumer = consumer;
+        this.parser   = new CalibProfileParser(tickFile);
+    }
+
+    /**
+     * Follow the file until stop() is called or it has not grown for idleMillis.
+     * @param idleMillis - how long to wait for more data before giving up, 0 to wait forever
+     */
+    public void follow(long idleMillis) throws IOException, InterruptedException {
+
+        try (WatchService watcher = path.getFileSystem().newWatchService()) {
+            path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            System.out.println("Following Vector data file: "+path);
+
+            long lastGrowth = System.currentTimeMillis();
+            while (!stopped) {
+                if (readNew()) {
+                    lastGrowth = System.currentTimeMillis();
+                } else if ((idleMillis > 0) && (System.currentTimeMillis() - lastGrowth > idleMillis)) {
+                    break;
+                }
+
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        // A new file under the same name, start over on it
+                        if ((event.kind() == StandardWatchEventKinds.ENTRY_CREATE) &&
+                            path.getFileName().equals(event.context())) {
+                            restart();
+                        }
+                    }
+                    key.reset();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped while waiting
+        } finally {
+            // The last line of a finished file may have no newline
+            if (pendingLength > 0) {
+                handleLine(pending, pendingLength);
+                pendingLength = 0;
+            }
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Set a listener called when the file is truncated or replaced, before its
+     * profiles are read again from the start.
+     */
+    public void setRestartListener(Runnable restartListener) {
+        this.restartListener = restartListener;
+    }
+
+    /**
+     * Stop following, follow() returns within POLL_MILLIS.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Read whatever has been added to the file since the last read.
+     * @return - true if anything was read
+     */
+    private boolean readNew() throws IOException {
+
+        if (channel == null) {
+            if (!Files.isRegularFile(path)) { return false; }
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        long size = channel.size();
+        if (size < offset) {
+            // Truncated, read it again from the start
+            System.out.println("Vector data file truncated, restarting: "+path);
+            restart();
+            return false;
+        }
+
+        boolean grew = false;
+        while (offset < size) {
+            readBuffer.clear();
+            int numRead = channel.read(readBuffer, offset);
+            if (numRead <= 0) { break; }
+            offset += numRead;
+            grew = true;
+
+            byte[] bytes = readBuffer.array();
+            for (int idx = 0; idx < numRead; idx++) {
+                byte b = bytes[idx];
+                if (b == '\n') {
+                    int length = pendingLength;
+                    if ((length > 0) && (pending[length-1] == '\r')) { length--; }
+                    handleLine(pending, length);
+                    pendingLength = 0;
+                } else {
+                    if (pendingLength == pending.length) {
+                        pending = Arrays.copyOf(pending, pending.length * 2);
+                    }
+                    pending[pendingLength++] = b;
+                }
+            }
+        }
+        return grew;
+    }
+
+    private void handleLine(byte[] bytes, int length) {
+        CalibProfile profile = parser.parseLine(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        if (profile != null) {
+            consumer.accept(profile);
+        }
+    }
+
+    /**
+     * Forget everything read so far and start again at the start of the file.
+     */
+    private void restart() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        offset = 0;
+        pendingLength = 0;
+        parser = new CalibProfileParser(tickFile);
+        restartListener.run();
+    }
+}
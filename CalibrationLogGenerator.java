@@ -0,0 +1,318 @@
+package calibration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Writes synthetic calibration data files, for testing how the readers and analyzers scale.
+ *
+ * The files have the same layout as the ones written on the robot: battery voltage, then for
+ * each profile the Nominal power, Sequence and Acceleration throttle headers, the IMU Begin
+ * marker, tab separated rows of timestamp, left,right encoders and left,right velocities,
+ * the Left,Right Measure headers, Stopped and the IMU End marker. The measures come before
+ * Stopped since that is where CalibProfileParser makes the profile.
+ *
+ * The profiles go through every combination of nominal power, sequence and acceleration
+ * throttle, and then repeat with longer runs, so each combination has runs of different
+ * lengths, as CalibrateAccel needs. In each profile:
+ *
+ *      the leading side accelerates at the acceleration throttle (ticks/ms per ms) up to
+ *      |nominal power| ticks/ms
+ *
+ *      the other side catches up with a time constant of -ramp ms, times (1 + asymmetry)
+ *      for the right side and (1 - asymmetry) for the left side. A positive asymmetry makes
+ *      the LR integrals of CalibrateOP bigger, i.e. LEFT_IS_FWD_OP = true
+ *
+ *      the wheels slip -slip ticks times the acceleration throttle, the measures are the
+ *      ticks less the slip over -tpi ticks per inch
+ *
+ *      the velocities have gaussian noise of -noise ticks/ms, the timestamps jitter by up to
+ *      a quarter of the sample period
+ *
+ * Rows are formatted straight into a byte buffer and written as they are made, so files of
+ * any size can be written in a little memory. Files ending in .gz are gzip compressed.
+ */
+public class CalibrationLogGenerator {
+
+    static final double[] POWERS    = {0.4, 0.6, -0.4, -0.6};
+    static final String[] SEQUENCES = {"LR", "RL"};
+    static final double[] THROTTLES = {0.01, 0.02, 0.03, 0.04};
+
+    String outFile    = "CalibSynthetic.txt";   // set by -o
+    long   numProfiles = 64;                    // set by -profiles
+    int    numPoints  = 200;                    // points in the shortest profiles, set by -points
+    double sampleRate = 100.0;                  // samples per second, set by -rate
+    double noise      = 0.005;                  // velocity noise in ticks/ms, set by -noise
+    double slip       = 100.0;                  // slip ticks at acceleration throttle 1.0, set by -slip
+    double asymmetry  = 0.2;                    // OP asymmetry, set by -asymmetry
+    double rampMs     = 30.0;                   // catch up time constant in ms, set by -ramp
+    double ticksPerInch = 10.0;                 // set by -tpi
+    long   seed       = 1;                      // set by -seed
+
+    private Random random;
+    private double clock;                       // log time in seconds, at the start of each line
+
+    // Output buffer, rows are formatted straight into it
+    private final byte[] buf    = new byte[1 << 16];
+    private final byte[] digits = new byte[24];
+    private int          pos    = 0;
+    private OutputStream out;
+
+
+    /**
+     * Class constructor for generating from code, set the fields and call generate().
+     */
+    CalibrationLogGenerator() {
+    }
+
+    /**
+     * Class constructor, writes a synthetic calibration data file.
+     */
+    public CalibrationLogGenerator(String[] args) {
+
+        if (!parseArgs(args)) { return; }
+
+        long start = System.nanoTime();
+        long numRows;
+        try {
+            numRows = write(outFile);
+        } catch (IOException e) {
+            System.out.println("BOO!! Failed to write "+outFile+": "+e);
+            return;
+        }
+        System.out.printf("Wrote %d profiles, %d rows to %s in %.1f s\n",
+                          numProfiles, numRows, outFile, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Write a data file, gzip compressed if the name ends in .gz.
+     * @return - number of data rows written
+     */
+    long write(String fileName) throws IOException {
+        OutputStream file = Files.newOutputStream(Paths.get(fileName));
+        if (fileName.endsWith(".gz")) {
+            file = new GZIPOutputStream(file, 1 << 16);
+        }
+        try (OutputStream stream = file) {
+            return generate(stream);
+        }
+    }
+
+    /**
+     * Write all profiles to a stream, the stream is not closed.
+     * @return - number of data rows written
+     */
+    long generate(OutputStream stream) throws IOException {
+
+        out    = stream;
+        pos    = 0;
+        random = new Random(seed);
+        clock  = 1.0;
+
+        header("Robot battery voltage = 12.687");
+        long numRows = 0;
+        int numCombinations = POWERS.length * SEQUENCES.length * THROTTLES.length;
+        for (long pdx = 0; pdx < numProfiles; pdx++) {
+            int  combination = (int) (pdx % numCombinations);
+            long repeat      = pdx / numCombinations;
+            double power    = POWERS[combination / (SEQUENCES.length * THROTTLES.length)];
+            String sequence = SEQUENCES[(combination / THROTTLES.length) % SEQUENCES.length];
+            double throttle = THROTTLES[combination % THROTTLES.length];
+            // each repeat runs a quarter longer, so the measures of a combination differ
+            int points = numPoints + (int) ((repeat % 4) * numPoints / 4);
+            numRows += profile(power, sequence, throttle, points);
+        }
+        flush();
+        out.flush();
+        return numRows;
+    }
+
+    /**
+     * Write one profile.
+     * @return - number of data rows written
+     */
+    private int profile(double power, String sequence, double throttle, int points) throws IOException {
+
+        header("Nominal power: " + String.format("%.2f", power));
+        header("Sequence: " + sequence);
+        header("Acceleration throttle: " + String.format("%.3f", throttle));
+        header("IMU heading at Begin: -0.000000");
+
+        boolean leftLeads = sequence.equals("LR");
+        double  speed     = Math.abs(power);
+        double  tau       = rampMs * (leftLeads ? (1.0 + asymmetry) : (1.0 - asymmetry));
+        double  periodMs  = 1000.0 / sampleRate;
+        double  leftTicks  = 0.0;
+        double  rightTicks = 0.0;
+        double  lastTime   = 0.0;
+        for (int idx = 0; idx < points; idx++) {
+            double time = (idx + 1 + 0.25 * (2.0 * random.nextDouble() - 1.0)) * periodMs;
+            double lead   = Math.min(speed, throttle * time);
+            double follow = Math.min(lead, speed * (1.0 - Math.exp(-time / tau)));
+            double leftVelocity  = leftLeads ? lead : follow;
+            double rightVelocity = leftLeads ? follow : lead;
+            leftTicks  += leftVelocity  * (time - lastTime);
+            rightTicks += rightVelocity * (time - lastTime);
+            lastTime = time;
+
+            // 005.000 : \t   9.750\t    4\t     0\t 0.408\t 0.048
+            putClock();
+            put(" : \t ");
+            putFixed(time, 3, 7);
+            put("\t ");
+            putFixed(Math.floor(leftTicks), 0, 4);
+            put("\t ");
+            putFixed(Math.floor(rightTicks), 0, 5);
+            put("\t ");
+            putFixed(Math.max(0.0, leftVelocity  + noise * random.nextGaussian()), 3, 0);
+            put("\t ");
+            putFixed(Math.max(0.0, rightVelocity + noise * random.nextGaussian()), 3, 0);
+            put("\n");
+        }
+        clock += lastTime / 1000.0;
+
+        double slipTicks = slip * throttle;
+        header("Left Measure : "  + String.format("%.2f", (Math.floor(leftTicks)  - slipTicks) / ticksPerInch));
+        header("Right Measure : " + String.format("%.2f", (Math.floor(rightTicks) - slipTicks) / ticksPerInch));
+        header("Stopped");
+        header("IMU heading at End: -1.000000");
+        return points;
+    }
+
+    /**
+     * Write a header line at the current log time, which then moves on a second.
+     */
+    private void header(String text) throws IOException {
+        putClock();
+        put(" : ");
+        put(text);
+        put("\n");
+        clock += 1.0;
+    }
+
+    private void putClock() throws IOException {
+        // like %07.3f, with room for it all so the buffer isn't flushed part way
+        if (pos + 64 > buf.length) { flush(); }
+        int start = pos;
+        putFixed(clock, 3, 0);
+        int length = pos - start;
+        if (length < 7) {
+            System.arraycopy(buf, start, buf, start + 7 - length, length);
+            for (int idx = start; idx < start + 7 - length; idx++) {
+                buf[idx] = '0';
+            }
+            pos = start + 7;
+        }
+    }
+
+    private void put(String text) throws IOException {
+        if (pos + text.length() > buf.length) { flush(); }
+        for (int idx = 0; idx < text.length(); idx++) {
+            buf[pos++] = (byte) text.charAt(idx);
+        }
+    }
+
+    /**
+     * Append a number with a fixed number of decimals, right aligned in width characters.
+     */
+    private void putFixed(double value, int decimals, int width) throws IOException {
+        if (pos + 32 + width > buf.length) { flush(); }
+        long scale = 1;
+        for (int d = 0; d < decimals; d++) { scale *= 10; }
+        long scaled = Math.round(Math.abs(value) * scale);
+        boolean negative = (value < 0) && (scaled != 0);
+
+        // digits are made backwards into the end of the scratch area
+        int dpos = digits.length;
+        for (int d = 0; d < decimals; d++) {
+            digits[--dpos] = (byte) ('0' + scaled % 10);
+            scaled /= 10;
+        }
+        if (decimals > 0) { digits[--dpos] = '.'; }
+        do {
+            digits[--dpos] = (byte) ('0' + scaled % 10);
+            scaled /= 10;
+        } while (scaled > 0);
+        if (negative) { digits[--dpos] = '-'; }
+
+        for (int pad = digits.length - dpos; pad < width; pad++) {
+            buf[pos++] = ' ';
+        }
+        System.arraycopy(digits, dpos, buf, pos, digits.length - dpos);
+        pos += digits.length - dpos;
+    }
+
+    private void flush() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+
+    // Options followed by a value
+    private static final List<String> VALUE_OPTIONS = List.of("-o", "-profiles", "-points", "-rate", "-noise", "-slip",
+                                                              "-asymmetry", "-ramp", "-tpi", "-seed");
+
+    /**
+     * Parse the commane line arugments
+     * @param args - Array of command line arguments
+     * @return     - false if the usage was asked for or an argument is bad, so there is nothing to write
+     */
+    private boolean parseArgs(String[] args) {
+
+        for (int idx = 0; idx < args.length; idx++) {
+            String arg = args[idx];
+            if (arg.equals("--help") || arg.equals("-help")) {
+                System.out.println("Usage:");
+                System.out.println("CalibrationLogGenerator [[-]-help] | [-o <OutputFileName>[.gz]] | [-profiles <N>] | [-points <N>] |");
+                System.out.println("    [-rate <SamplesPerSecond>] | [-noise <TicksPerMs>] | [-slip <Ticks>] | [-asymmetry <A>] |");
+                System.out.println("    [-ramp <Ms>] | [-tpi <TicksPerInch>] | [-seed <N>]");
+                return false;
+            }
+            if (idx + 1 >= args.length) {
+                if (VALUE_OPTIONS.contains(arg)) {
+                    System.out.println("BOO!! "+arg+" needs a value, see -help");
+                    return false;
+                }
+                continue;
+            }
+            try {
+                switch (arg) {
+                    case "-o":         outFile      = args[++idx];                     break;
+                    case "-profiles":  numProfiles  = Long.parseLong(args[++idx]);     break;
+                    case "-points":    numPoints    = Integer.parseInt(args[++idx]);   break;
+                    case "-rate":      sampleRate   = Double.parseDouble(args[++idx]); break;
+                    case "-noise":     noise        = Double.parseDouble(args[++idx]); break;
+                    case "-slip":      slip         = Double.parseDouble(args[++idx]); break;
+                    case "-asymmetry": asymmetry    = Double.parseDouble(args[++idx]); break;
+                    case "-ramp":      rampMs       = Double.parseDouble(args[++idx]); break;
+                    case "-tpi":       ticksPerInch = Double.parseDouble(args[++idx]); break;
+                    case "-seed":      seed         = Long.parseLong(args[++idx]);     break;
+                    default:                                                           break;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("BOO!! "+arg+" needs a number, not "+args[idx]);
+                return false;
+            }
+        }
+        if ((numPoints < 1) || (sampleRate <= 0.0) || (Math.abs(asymmetry) >= 1.0)) {
+            System.out.println("BOO!! -points and -rate must be positive and -asymmetry between -1 and 1");
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Main method run at command line.
+     */
+    public static void main(String[] args) {
+        new CalibrationLogGenerator(args);
+    }
+}
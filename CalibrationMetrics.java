@@ -0,0 +1,259 @@
+package calibration;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Timings and counters of the stages of a calibration run, to find which stage is slow.
+ *
+ * Each stage keeps the number of times it ran, the total and maximum time and a histogram of
+ * its latencies. The stages are:
+ *
+ *      Read         - parsing each profile of a data file, or the whole file for the
+ *                     parallel reader and a CalibrationCache load
+ *      Validate     - ProfileValidator checking each profile
+ *      OPIntegral   - CalibrateOP integrating the velocity ratio of each profile
+ *      AccelPairing - CalibrateAccel pairing the profiles of a setting and solving for slip
+ *      Write        - writing a parameter file
+ *
+ * and the counters are the lines read, data rows rejected and profiles found valid/invalid.
+ * They are always kept, it costs a couple of clock reads per profile. With -metrics they are
+ * also published as JMX MBeans, "calibration:type=Metrics" and "calibration:type=Stage,name=...",
+ * and a summary is shown when the program exits.
+ */
+public class CalibrationMetrics {
+
+    static final Stage READ          = new Stage("Read");
+    static final Stage VALIDATE      = new Stage("Validate");
+    static final Stage OP_INTEGRAL   = new Stage("OPIntegral");
+    static final Stage ACCEL_PAIRING = new Stage("AccelPairing");
+    static final Stage WRITE         = new Stage("Write");
+    static final Stage[] STAGES = {READ, VALIDATE, OP_INTEGRAL, ACCEL_PAIRING, WRITE};
+
+    static final Counters COUNTERS = new Counters();
+
+    private static boolean registered   = false;
+    private static boolean summaryAtExit = false;
+
+
+    /**
+     * JMX view of the counters.
+     */
+    public interface CountersMBean {
+        long   getLinesRead();
+        long   getRowsRejected();
+        long   getProfilesValid();
+        long   getProfilesInvalid();
+        double getLinesPerSecond();
+        void   reset();
+    }
+
+    /**
+     * Counters of what has been read and checked.
+     */
+    public static class Counters implements CountersMBean {
+        final LongAdder linesRead       = new LongAdder();
+        final LongAdder rowsRejected    = new LongAdder();
+        final LongAdder profilesValid   = new LongAdder();
+        final LongAdder profilesInvalid = new LongAdder();
+
+        public long getLinesRead()       { return linesRead.sum(); }
+        public long getRowsRejected()    { return rowsRejected.sum(); }
+        public long getProfilesValid()   { return profilesValid.sum(); }
+        public long getProfilesInvalid() { return profilesInvalid.sum(); }
+
+        /**
+         * Return the lines read per second of Read stage time.
+         */
+        public double getLinesPerSecond() {
+            long nanos = READ.totalNanos.sum();
+            return (nanos == 0) ? 0.0 : linesRead.sum() * 1e9 / nanos;
+        }
+
+        public void reset() {
+            linesRead.reset();
+            rowsRejected.reset();
+            profilesValid.reset();
+            profilesInvalid.reset();
+        }
+    }
+
+    /**
+     * JMX view of a stage.
+     */
+    public interface StageMBean {
+        String getName();
+        long   getCount();
+        double getTotalMillis();
+        double getMeanMillis();
+        double getMaxMillis();
+        double getP50Millis();
+        double getP90Millis();
+        double getP99Millis();
+        long[] getHistogram();
+        void   reset();
+    }
+
+    /**
+     * Latencies of one stage.
+     *
+     * The histogram has 4 buckets per power of two nanoseconds, so a percentile is the upper
+     * end of its bucket and at most a quarter over the true value.
+     */
+    public static class Stage implements StageMBean {
+        static final int NUM_BUCKETS = 4 * 63;
+
+        final String          name;
+        final LongAdder       count      = new LongAdder();
+        final LongAdder       totalNanos = new LongAdder();
+        final AtomicLong      maxNanos   = new AtomicLong();
+        final AtomicLongArray histogram  = new AtomicLongArray(NUM_BUCKETS);
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Return the start time of a run of the stage, to hand to record().
+         */
+        long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Record a run of the stage that started at start().
+         */
+        void record(long startNanos) {
+            long nanos = Math.max(0, System.nanoTime() - startNanos);
+            count.increment();
+            totalNanos.add(nanos);
+            histogram.incrementAndGet(bucket(nanos));
+            if (nanos > maxNanos.get()) {
+                maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        static int bucket(long nanos) {
+            if (nanos < 4) { return (int) nanos; }
+            int exp = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) ((nanos >>> (exp - 2)) & 3);
+            return (exp - 1) * 4 + sub;
+        }
+
+        static long bucketUpperBound(int bucket) {
+            if (bucket < 4) { return bucket; }
+            int exp = bucket / 4 + 1;
+            int sub = bucket % 4;
+            return ((5L + sub) << (exp - 2)) - 1;
+        }
+
+        public String getName()        { return name; }
+        public long   getCount()       { return count.sum(); }
+        public double getTotalMillis() { return totalNanos.sum() / 1e6; }
+        public double getMaxMillis()   { return maxNanos.get() / 1e6; }
+        public double getP50Millis()   { return percentile(0.50); }
+        public double getP90Millis()   { return percentile(0.90); }
+        public double getP99Millis()   { return percentile(0.99); }
+
+        public double getMeanMillis() {
+            long n = count.sum();
+            return (n == 0) ? 0.0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        /**
+         * Return the number of runs in each bucket, see bucket().
+         */
+        public long[] getHistogram() {
+            long[] counts = new long[NUM_BUCKETS];
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                counts[b] = histogram.get(b);
+            }
+            return counts;
+        }
+
+        double percentile(double fraction) {
+            long[] counts = getHistogram();
+            long total = 0;
+            for (long c : counts) { total += c; }
+            if (total == 0) { return 0.0; }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                seen += counts[b];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(b), maxNanos.get()) / 1e6;
+                }
+            }
+            return maxNanos.get() / 1e6;
+        }
+
+        public void reset() {
+            count.reset();
+            totalNanos.reset();
+            maxNanos.set(0);
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                histogram.set(b, 0);
+            }
+        }
+    }
+
+
+    /**
+     * Publish the metrics as JMX MBeans and show a summary when the program exits.
+     */
+    public static void enable() {
+        register();
+        summaryAtExit();
+    }
+
+    /**
+     * Publish the metrics as JMX MBeans on the platform MBean server.
+     */
+    public static synchronized void register() {
+        if (registered) { return; }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(COUNTERS, new ObjectName("calibration:type=Metrics"));
+            for (Stage stage : STAGES) {
+                server.registerMBean(stage, new ObjectName("calibration:type=Stage,name=" + stage.name));
+            }
+            registered = true;
+        } catch (JMException e) {
+            System.out.println("BOO!! Failed to publish metrics over JMX: "+e);
+        }
+    }
+
+    /**
+     * Show a summary of the metrics when the program exits.
+     */
+    public static synchronized void summaryAtExit() {
+        if (summaryAtExit) { return; }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print(summary()), "calibration-metrics-summary"));
+        summaryAtExit = true;
+    }
+
+    /**
+     * Return the counters and one line per stage that has run.
+     */
+    public static String summary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("lines read = %d (%.0f lines/s)\nrows rejected = %d\nprofiles valid = %d\nprofiles invalid = %d\n",
+                                     COUNTERS.getLinesRead(), COUNTERS.getLinesPerSecond(), COUNTERS.getRowsRejected(),
+                                     COUNTERS.getProfilesValid(), COUNTERS.getProfilesInvalid()));
+        for (Stage stage : STAGES) {
+            if (stage.getCount() == 0) { continue; }
+            summary.append(String.format("%-12s count %8d total ms %10.3f mean ms %8.4f p50 %8.4f p90 %8.4f p99 %8.4f max %8.4f\n",
+                                         stage.name, stage.getCount(), stage.getTotalMillis(), stage.getMeanMillis(),
+                                         stage.getP50Millis(), stage.getP90Millis(), stage.getP99Millis(), stage.getMaxMillis()));
+        }
+        return summary.toString();
+    }
+}
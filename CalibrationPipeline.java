@@ -0,0 +1,185 @@
+package calibration;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+/**
+ * Runs several analyses on one read of a calibration data file.
+ *
+ * The data file is parsed once and each profile is checked once by ProfileValidator. The
+ * profile and the result of the check are then handed to every AnalysisStage, e.g. OP
+ * detection (CalibrateOP) and the acceleration throttle (CalibrateAccel), and each stage
+ * writes its own parameter file. Profiles are analyzed on -threads N threads, the results
+ * are applied to each stage in profile order so the parameters are the same as when each
+ * analysis is run on its own.
+ */
+public class CalibrationPipeline {
+
+    String  dataFile  = null;               // data file name, from the first command line argument
+    String  outDir    = ".";                // directory for the parameter files, set by -o
+    boolean useMappedReader = false;        // read the data file with MappedCalibrationReader, set by -mmap
+    boolean useParallelReader = false;      // read the data file with ParallelCalibrationReader, set by -parallel
+    boolean useCache = false;               // read the data file through CalibrationCache, set by -cache
+    int     numThreads = 1;                 // analyze profiles on this many threads, set by -threads
+    Diagnostics diagnostics = Diagnostics.CONSOLE;  // where the stage names are shown, see CalibrationEngine
+
+    List<AnalysisStage<?>> stages = new ArrayList<>();
+
+
+    /**
+     * Class constructor for running stages on profiles that have already been read, see run().
+     */
+    CalibrationPipeline(List<AnalysisStage<?>> stages, int numThreads) {
+        this.stages.addAll(stages);
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Class constructor, runs the selected analyses of a calibration data file.
+     */
+    public CalibrationPipeline(String[] args) {
+
+        if (!parseArgs(args)) { return; }
+        if (dataFile == null) {
+            System.out.println("BOO!! No data file given, see -help");
+            return;
+        }
+        // Without a choice, run every analysis
+        if (stages.isEmpty()) {
+            stages.add(new CalibrateOP());
+            stages.add(new CalibrateAccel());
+        }
+
+        // Open calibration data file, profiles are read one at a time as they are analyzed
+        // If there is a file problem, then simply exit
+        Stream<CalibProfile> calibProfiles = CalibrationFileHandler.openCalibrationDataFile(dataFile, useCache,
+                                                                                           useParallelReader, useMappedReader);
+        if (calibProfiles == null) { return; }
+
+        run(calibProfiles::iterator);
+        calibProfiles.close();
+        Diagnostics.flush();
+
+        for (AnalysisStage<?> stage : stages) {
+            String outFile = Paths.get(outDir, stage.outFile()).toString();
+            BufferedWriter writer = CalibrationFileHandler.openWriteFile(outFile);
+            if (writer == null) { continue; }
+            long start = CalibrationMetrics.WRITE.start();
+            try {
+                writer.write(stage.parameters());
+                writer.close();
+                CalibrationMetrics.WRITE.record(start);
+            } catch (IOException e) {
+                System.out.printf("\nBOO! Failed to write to Output file %s.\n", outFile);
+            }
+        }
+    }
+
+    /**
+     * Analyze the profiles with every stage and work out the parameters of each.
+     * @param profiles - profiles to analyze, each is only looked at once
+     * @return         - true if all of the profiles were valid for every stage
+     */
+    boolean run(Iterable<CalibProfile> profiles) {
+
+        ParallelProfileAnalysis.run(profiles, numThreads, profile -> {
+            String problem = ProfileValidator.check(profile);
+            Object[] results = new Object[stages.size()];
+            for (int sdx = 0; sdx < results.length; sdx++) {
+                results[sdx] = stages.get(sdx).analyzeOne(profile, problem);
+            }
+            return results;
+        }, results -> {
+            for (int sdx = 0; sdx < results.length; sdx++) {
+                apply(stages.get(sdx), results[sdx]);
+            }
+        });
+
+        boolean allProfilesValid = true;
+        for (AnalysisStage<?> stage : stages) {
+            diagnostics.info("%s:\n", stage.name());
+            allProfilesValid = stage.finish() && allProfilesValid;
+        }
+        return allProfilesValid;
+    }
+
+    /**
+     * Apply a result to the stage that made it.
+     */
+    @SuppressWarnings("unchecked")
+    private static <R> void apply(AnalysisStage<R> stage, Object result) {
+        stage.apply((R) result);
+    }
+
+    /**
+     * Parse the commane line arugments
+     * @param args - Array of command line arguments
+     * @return     - false if the usage was asked for, so there is nothing to analyze
+     */
+    private boolean parseArgs(String[] args) {
+
+        for (int idx = 0; idx < args.length; idx++) {
+            String arg = args[idx];
+            if (arg.equals("--help") || arg.equals("-help")) {
+                System.out.println("Usage:");
+                System.out.println("CalibrationPipeline <DataFileName> | [[-]-help] |");
+                System.out.println("    [-op] | [-accel] | [-o <OutputDirectory>] | [-mmap] | [-parallel] | [-cache] | [-threads <N>] | [-metrics] |");
+                System.out.println("    [-quiet] | [-verbose]");
+                return false;
+            }
+            else if (arg.equals("-op")) {
+                stages.add(new CalibrateOP());
+            }
+            else if (arg.equals("-accel")) {
+                stages.add(new CalibrateAccel());
+            }
+            else if (arg.equals("-o") && (idx + 1 < args.length)) {
+                outDir = args[++idx];
+            }
+            else if (arg.equals("-mmap")) {
+                useMappedReader = true;
+            }
+            else if (arg.equals("-parallel")) {
+                useParallelReader = true;
+            }
+            else if (arg.equals("-cache")) {
+                useCache = true;
+            }
+            else if (arg.equals("-metrics")) {
+                CalibrationMetrics.enable();
+            }
+            else if (arg.equals("-quiet")) {
+                Diagnostics.CONSOLE.level = Diagnostics.Level.ERROR;
+            }
+            else if (arg.equals("-verbose")) {
+                Diagnostics.CONSOLE.level = Diagnostics.Level.DEBUG;
+            }
+            else if (arg.equals("-threads") && (idx + 1 < args.length)) {
+                try {
+                    numThreads = Math.max(1, Integer.parseInt(args[++idx]));
+                } catch (NumberFormatException e) {
+                    System.out.println("BOO!! -threads needs a number, using "+numThreads);
+                }
+            }
+            else if ((idx == 0) && (arg.charAt(0) != '-')) {
+                dataFile = arg;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Main method run at command line.
+     */
+    public static void main(String[] args) {
+        new CalibrationPipeline(args);
+    }
+}
@@ -0,0 +1,371 @@
+package calibration;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+
+/**
+ * Long running analysis service, so a tuning session doesn't pay JVM start up and JIT warm up
+ * for every data file.
+ *
+ * Listens on a local HTTP port (127.0.0.1:8808 by default) and runs each request as a job on a
+ * pool of -threads N worker threads, so several jobs run at once:
+ *
+ *      POST /analyze?file=<DataFileName>[&analyses=op,accel]
+ *          analyze a data file on the server's disk
+ *      POST /analyze[?analyses=op,accel]   with the data file as the request body
+ *          analyze a data file sent by the client
+ *      GET  /stats
+ *          number of jobs, jobs running, failures, job latency percentiles and the stage
+ *          timings of CalibrationMetrics, which are also published over JMX
+ *      POST /shutdown
+ *          stop the server once the running jobs are done, later jobs are refused with 503
+ *
+ * /analyze answers with a "valid = true|false" line, the job time, and then the parameters of
+ * each analysis after a "# <parameter file name>" line.
+ */
+public class CalibrationServer {
+
+    String  bindAddress = "127.0.0.1";     // set by -bind, only local clients by default
+    int     port        = 8808;            // set by -port
+    int     numThreads  = Runtime.getRuntime().availableProcessors();   // set by -threads
+    boolean useMappedReader = false;        // read data files with MappedCalibrationReader, set by -mmap
+    boolean useParallelReader = false;      // read data files with ParallelCalibrationReader, set by -parallel
+    boolean useCache = false;               // read data files through CalibrationCache, set by -cache
+
+    HttpServer       server;
+    ExecutorService  workers;
+    volatile boolean stopping = false;      // set by stop(), no new jobs are started
+
+    final AtomicLong    jobCount     = new AtomicLong();
+    final AtomicLong    failureCount = new AtomicLong();
+    final AtomicInteger running      = new AtomicInteger();
+    final LatencyRecorder latency    = new LatencyRecorder(4096);
+
+
+    /**
+     * Records job latencies, keeping the last few for percentiles.
+     */
+    static class LatencyRecorder {
+        private final long[] recent;
+        private int  next  = 0;
+        private long count = 0;
+        private long totalNanos = 0;
+        private long maxNanos   = 0;
+
+        LatencyRecorder(int size) {
+            recent = new long[size];
+        }
+
+        synchronized void record(long nanos) {
+            recent[next] = nanos;
+            next = (next + 1) % recent.length;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        /**
+         * Return count, mean, percentiles of the recent jobs and max, in ms.
+         */
+        synchronized String summary() {
+            int n = (int) Math.min(count, recent.length);
+            long[] sorted = Arrays.copyOf(recent, n);
+            Arrays.sort(sorted);
+            return String.format("latency count = %d\nlatency mean ms = %.3f\nlatency p50 ms = %.3f\nlatency p90 ms = %.3f\n" +
+                                 "latency p99 ms = %.3f\nlatency max ms = %.3f\n",
+                                 count, (count == 0) ? 0.0 : totalNanos / 1e6 / count,
+                                 percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), maxNanos / 1e6);
+        }
+
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) { return 0.0; }
+            int idx = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, idx))] / 1e6;
+        }
+    }
+
+
+    /**
+     * Class constructor, starts the server.
+     */
+    public CalibrationServer(String[] args) {
+
+        // If only the usage was asked for, there is nothing to serve
+        if (!parseArgs(args)) { return; }
+        try {
+            start();
+        } catch (IOException e) {
+            System.out.println("BOO!! Failed to start server on "+bindAddress+":"+port+": "+e);
+            return;
+        }
+        System.out.printf("Calibration server listening on http://%s:%d/ with %d worker threads\n",
+                          bindAddress, server.getAddress().getPort(), numThreads);
+    }
+
+    /**
+     * Start listening, the server runs until stop() or /shutdown.
+     */
+    void start() throws IOException {
+        workers = Executors.newFixedThreadPool(numThreads);
+        server  = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        server.setExecutor(workers);
+        server.createContext("/analyze",  this::handleAnalyze);
+        server.createContext("/stats",    this::handleStats);
+        server.createContext("/shutdown", this::handleShutdown);
+        server.start();
+        CalibrationMetrics.register();
+    }
+
+    /**
+     * Stop accepting jobs, wait for the running jobs and shut down.
+     */
+    void stop() {
+        stopping = true;
+        try {
+            synchronized (this) {
+                while (running.get() > 0) {
+                    wait();
+                }
+            }
+            // Only the exchanges answering the last jobs, or refusing new ones, are left
+            server.stop(1);
+            workers.shutdown();
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.out.println("BOO!! Worker threads still busy after 30 s, stopping anyway");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.print(stats());
+    }
+
+    private void handleAnalyze(HttpExchange exchange) throws IOException {
+
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "BOO!! use POST\n");
+            return;
+        }
+        // Counted as running before stopping is looked at, so stop() either waits for the job or it is refused
+        running.incrementAndGet();
+        long start = System.nanoTime();
+        long jobId = 0;
+        String source = "request body";
+        try {
+            if (stopping) {
+                respond(exchange, 503, "BOO!! server is stopping\n");
+                return;
+            }
+            jobId = jobCount.incrementAndGet();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            List<AnalysisStage<?>> stages = makeStages(query.get("analyses"));
+            if (stages == null) {
+                failureCount.incrementAndGet();
+                respond(exchange, 400, "BOO!! unknown analysis in "+query.get("analyses")+", use op and/or accel\n");
+                return;
+            }
+
+            // Read the profiles from a file on disk, or from the request body
+            List<CalibProfile> profiles;
+            String file = query.get("file");
+            if (file != null) {
+                source = file;
+                Stream<CalibProfile> stream = CalibrationFileHandler.openCalibrationDataFile(file, useCache, useParallelReader, useMappedReader);
+                if (stream == null) {
+                    failureCount.incrementAndGet();
+                    respond(exchange, 404, "BOO!! can't read data file "+file+"\n");
+                    return;
+                }
+                profiles = new ArrayList<>();
+                stream.forEach(profiles::add);
+                stream.close();
+            } else {
+                profiles = readProfiles(exchange);
+            }
+
+            CalibrationPipeline pipeline = new CalibrationPipeline(stages, 1);
+            boolean valid = pipeline.run(profiles);
+
+            long elapsed = System.nanoTime() - start;
+            StringBuilder response = new StringBuilder();
+            response.append("valid = ").append(valid).append("\n");
+            response.append(String.format("elapsed ms = %.3f\n", elapsed / 1e6));
+            for (AnalysisStage<?> stage : stages) {
+                response.append("# ").append(stage.outFile()).append("\n");
+                response.append(stage.parameters());
+            }
+            System.out.printf("Job %d %s: %d profiles in %.3f ms\n", jobId, source, profiles.size(), elapsed / 1e6);
+            respond(exchange, 200, response.toString());
+        } catch (IOException | RuntimeException e) {
+            // e.g. the request body could not be read, or the analysis broke
+            failureCount.incrementAndGet();
+            System.out.println("BOO!! Job "+jobId+" "+source+" failed: "+e);
+            respond(exchange, 500, "BOO!! analysis failed: "+e+"\n");
+        } finally {
+            if (jobId > 0) {
+                latency.record(System.nanoTime() - start);
+            }
+            if (running.decrementAndGet() == 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, stats());
+    }
+
+    private void handleShutdown(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "BOO!! use POST\n");
+            return;
+        }
+        respond(exchange, 200, "stopping\n");
+        // stop() waits for this exchange, so it can't run on a worker
+        new Thread(this::stop, "calibration-server-stop").start();
+    }
+
+    /**
+     * Return the counters and latencies of the jobs so far, and the stage metrics.
+     */
+    String stats() {
+        return String.format("jobs = %d\nrunning = %d\nfailures = %d\n", jobCount.get(), running.get(), failureCount.get())
+               + latency.summary() + CalibrationMetrics.summary();
+    }
+
+    /**
+     * Parse the data file sent as the request body.
+     */
+    private static List<CalibProfile> readProfiles(HttpExchange exchange) throws IOException {
+        List<CalibProfile> profiles = new ArrayList<>();
+        CalibProfileParser parser = new CalibProfileParser(false);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        while (line != null) {
+            CalibProfile profile = parser.parseLine(line);
+            if (profile != null) {
+                profiles.add(profile);
+            }
+            line = reader.readLine();
+        }
+        return profiles;
+    }
+
+    /**
+     * Make the analyses named in a comma separated list, all of them if there is no list.
+     * @return - the analyses, or null if a name is unknown
+     */
+    static List<AnalysisStage<?>> makeStages(String analyses) {
+        List<AnalysisStage<?>> stages = new ArrayList<>();
+        if (analyses == null) {
+            analyses = "op,accel";
+        }
+        for (String name : analyses.split(",")) {
+            switch (name.trim().toLowerCase()) {
+                case "op":    stages.add(new CalibrateOP());    break;
+                case "accel": stages.add(new CalibrateAccel()); break;
+                default:      return null;
+            }
+        }
+        return stages;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) { return query; }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) { continue; }
+            query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                      URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        // drain the request so the connection can be reused
+        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Parse the commane line arugments
+     * @param args - Array of command line arguments
+     * @return     - false if the usage was asked for, so there is nothing to do
+     */
+    private boolean parseArgs(String[] args) {
+
+        for (int idx = 0; idx < args.length; idx++) {
+            String arg = args[idx];
+            if (arg.equals("--help") || arg.equals("-help")) {
+                System.out.println("Usage:");
+                System.out.println("CalibrationServer [[-]-help] | [-port <N>] | [-bind <Address>] | [-threads <N>] |");
+                System.out.println("    [-mmap] | [-parallel] | [-cache]");
+                return false;
+            }
+            else if (arg.equals("-port") && (idx + 1 < args.length)) {
+                try {
+                    port = Integer.parseInt(args[++idx]);
+                } catch (NumberFormatException e) {
+                    System.out.println("BOO!! -port needs a number, using "+port);
+                }
+            }
+            else if (arg.equals("-bind") && (idx + 1 < args.length)) {
+                bindAddress = args[++idx];
+            }
+            else if (arg.equals("-threads") && (idx + 1 < args.length)) {
+                try {
+                    numThreads = Math.max(1, Integer.parseInt(args[++idx]));
+                } catch (NumberFormatException e) {
+                    System.out.println("BOO!! -threads needs a number, using "+numThreads);
+                }
+            }
+            else if (arg.equals("-mmap")) {
+                useMappedReader = true;
+            }
+            else if (arg.equals("-parallel")) {
+                useParallelReader = true;
+            }
+            else if (arg.equals("-cache")) {
+                useCache = true;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Main method run at command line.
+     */
+    public static void main(String[] args) {
+        new CalibrationServer(args);
+    }
+}
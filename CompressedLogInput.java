@@ -0,0 +1,262 @@
+package calibration;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Input of calibration data files that may be compressed.
+ *
+ * The compression is found from the first bytes of the file, not its name, so renamed
+ * files still work. gzip files are decompressed with GZIPInputStream. zstd files are
+ * decompressed by the zstd command, since the JDK has no zstd codec.
+ *
+ * Decompression runs on a thread of its own, which fills blocks of BLOCK_SIZE bytes and
+ * hands them to the reader through a queue of QUEUE_BLOCKS blocks. The parser works on one
+ * block while the next is being decompressed, and decompression waits when the parser is
+ * QUEUE_BLOCKS blocks behind, so memory use stays bounded however large the file is.
+ */
+public class CompressedLogInput {
+
+    static final int BLOCK_SIZE   = 1 << 16;
+    static final int QUEUE_BLOCKS = 16;
+
+    static final int NONE = 0;
+    static final int GZIP = 1;
+    static final int ZSTD = 2;
+
+
+    /**
+     * Return the compression of a file, NONE, GZIP or ZSTD.
+     */
+    static int compression(Path file) throws IOException {
+        byte[] magic = new byte[4];
+        int numRead = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            while (numRead < magic.length) {
+                int n = in.read(magic, numRead, magic.length - numRead);
+                if (n < 0) { break; }
+                numRead += n;
+            }
+        }
+        if ((numRead >= 2) && ((magic[0] & 0xff) == 0x1f) && ((magic[1] & 0xff) == 0x8b)) {
+            return GZIP;
+        }
+        if ((numRead == 4) && ((magic[0] & 0xff) == 0x28) && ((magic[1] & 0xff) == 0xb5) &&
+                              ((magic[2] & 0xff) == 0x2f) && ((magic[3] & 0xff) == 0xfd)) {
+            return ZSTD;
+        }
+        return NONE;
+    }
+
+    /**
+     * Return true if a file is gzip or zstd compressed.
+     * Readers that map the file directly use this to hand compressed files to the line reader.
+     */
+    public static boolean isCompressed(String fileName) {
+        try {
+            return compression(Paths.get(fileName)) != NONE;
+        } catch (IOException e) {
+            // let the caller report the file when it tries to open it
+            return false;
+        }
+    }
+
+    /**
+     * Open a calibration data file, decompressing it if needed.
+     * @param fileName - name of the file
+     * @return         - stream of the uncompressed bytes of the file
+     */
+    public static InputStream open(String fileName) throws IOException {
+        Path file = Paths.get(fileName);
+        switch (compression(file)) {
+            case GZIP:
+                return new PipelinedInputStream(new GZIPInputStream(Files.newInputStream(file), BLOCK_SIZE), null);
+            case ZSTD:
+                Process process;
+                try {
+                    process = new ProcessBuilder("zstd", "-d", "-c", "-q", "--", file.toString())
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                } catch (IOException e) {
+                    throw new IOException("zstd compressed file "+fileName+" needs the zstd command: "+e.getMessage());
+                }
+                process.getOutputStream().close();
+                return new PipelinedInputStream(process.getInputStream(), process);
+            default:
+                return Files.newInputStream(file);
+        }
+    }
+
+
+    /**
+     * Stream of the blocks decompressed by a background thread.
+     */
+    static class PipelinedInputStream extends InputStream {
+
+        // Marks the end of the data in the queue
+        private static final Block END = new Block(0);
+
+        private static class Block {
+            final byte[] data;
+            int length;
+            IOException error;
+            Block(int size) { data = new byte[size]; }
+        }
+
+        private final InputStream source;
+        private final Process process;
+        private final Thread decompressor;
+
+        // Filled blocks on their way to the reader, and empty blocks on their way back
+        private final BlockingQueue<Block> filled = new ArrayBlockingQueue<>(QUEUE_BLOCKS + 1);
+        private final BlockingQueue<Block> empty  = new ArrayBlockingQueue<>(QUEUE_BLOCKS);
+
+        private Block current;
+        private int   position;
+        private boolean finished = false;
+        private volatile boolean closed = false;
+
+
+        PipelinedInputStream(InputStream source, Process process) {
+            this.source  = source;
+            this.process = process;
+            for (int bdx = 0; bdx < QUEUE_BLOCKS; bdx++) {
+                empty.add(new Block(BLOCK_SIZE));
+            }
+            decompressor = new Thread(this::decompress, "calibration-decompress");
+            decompressor.setDaemon(true);
+            decompressor.start();
+        }
+
+        /**
+         * Body of the decompression thread. The source is only read and closed by this thread,
+         * so close() can't pull it away in the middle of a read.
+         */
+        private void decompress() {
+            try {
+                while (!closed) {
+                    Block block = empty.take();
+                    block.length = 0;
+                    // Fill the whole block, so the reader sees few large blocks
+                    while (block.length < block.data.length) {
+                        int n = source.read(block.data, block.length, block.data.length - block.length);
+                        if (n < 0) { break; }
+                        block.length += n;
+                    }
+                    if (block.length > 0) {
+                        filled.put(block);
+                    }
+                    if (block.length < block.data.length) {
+                        break;
+                    }
+                }
+                if ((process != null) && (process.waitFor() != 0)) {
+                    throw new IOException("zstd failed with exit code "+process.exitValue());
+                }
+                filled.put(END);
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                // e.g. corrupt data the decompressor doesn't report as an IOException,
+                // the reader must still hear of it or it waits forever
+                fail(new IOException("Decompression failed: "+e, e));
+            } catch (InterruptedException e) {
+                // closed by the reader
+            } finally {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    // nothing more is read from it
+                }
+            }
+        }
+
+        /**
+         * Hand an error to the reader, unless it has closed the stream.
+         */
+        private void fail(IOException e) {
+            if (!closed) {
+                Block failed = new Block(0);
+                failed.error = e;
+                filled.offer(failed);
+            }
+        }
+
+        /**
+         * Make current a block with bytes left to read.
+         * @return - false at the end of the data
+         */
+        private boolean nextBlock() throws IOException {
+            if (finished) { return false; }
+            if ((current != null) && (position < current.length)) { return true; }
+            if (current != null) {
+                empty.offer(current);
+                current = null;
+            }
+            Block block;
+            try {
+                block = filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for decompressed data");
+            }
+            if (block.error != null) {
+                finished = true;
+                throw block.error;
+            }
+            if (block == END) {
+                finished = true;
+                return false;
+            }
+            current  = block;
+            position = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextBlock()) { return -1; }
+            return current.data[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) { return 0; }
+            if (!nextBlock()) { return -1; }
+            int n = Math.min(length, current.length - position);
+            System.arraycopy(current.data, position, bytes, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (current != null) ? current.length - position : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) { return; }
+            closed = true;
+            decompressor.interrupt();
+            if (process != null) {
+                process.destroy();
+            }
+            // The decompressor closes the source once it is out of its read
+            try {
+                decompressor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
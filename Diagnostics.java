@@ -0,0 +1,202 @@
+package calibration;
+
+import java.io.PrintStream;
+
+import java.util.IllegalFormatException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Leveled diagnostics of the analyses, written to the console by a background thread.
+ *
+ * The analyses hand their messages to a channel instead of printing them, so they never wait
+ * on a slow console. A message is a format and its arguments, which are only formatted by the
+ * writer thread, and only if the level of the message is shown:
+ *
+ *      ERROR - problems with the data
+ *      INFO  - results, shown by default
+ *      DEBUG - each profile and regression, shown with -verbose
+ *
+ * -quiet shows only errors. Messages of all channels go through one bounded queue, in the order
+ * they are given. If the console falls so far behind that the queue fills up, DEBUG messages are
+ * dropped and counted, other messages wait for room. flush() waits until all messages given so
+ * far are written, the programs call it before they end.
+ *
+ * Analyses running at once, e.g. of several data files, each get a channel with a prefix that is
+ * put in front of every line of their messages, so the lines can be told apart.
+ */
+public class Diagnostics {
+
+    /**
+     * Levels of messages, and of what a channel shows. OFF shows nothing.
+     */
+    public enum Level { OFF, ERROR, INFO, DEBUG }
+
+    static final int QUEUE_SIZE = 8192;
+
+    // Channel of the command line programs, set by -quiet and -verbose
+    static final Diagnostics CONSOLE = new Diagnostics(null);
+
+    private static final BlockingQueue<Message> queue   = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final AtomicLong             dropped = new AtomicLong();
+    private static final Thread                 writer  = new Thread(Diagnostics::write, "calibration-diagnostics");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Diagnostics::flush, "calibration-diagnostics-flush"));
+    }
+
+    final PrintStream out;          // where messages are written, null for System.out as it is when written
+    final String      prefix;       // put in front of every line of the messages, or null
+    volatile Level    level;        // highest level shown
+
+
+    /**
+     * A message waiting for the writer, or a flush marker.
+     */
+    private static class Message {
+        final Diagnostics    channel;
+        final String         format;
+        final Object[]       args;
+        final CountDownLatch flushed;
+
+        Message(Diagnostics channel, String format, Object[] args, CountDownLatch flushed) {
+            this.channel = channel;
+            this.format  = format;
+            this.args    = args;
+            this.flushed = flushed;
+        }
+    }
+
+
+    /**
+     * Class constructor, shows INFO and ERROR messages.
+     * @param out - where messages are written, null for System.out
+     */
+    public Diagnostics(PrintStream out) {
+        this(out, Level.INFO);
+    }
+
+    /**
+     * Primary class constructor.
+     * @param out   - where messages are written, null for System.out
+     * @param level - highest level shown
+     */
+    public Diagnostics(PrintStream out, Level level) {
+        this(out, level, null);
+    }
+
+    /**
+     * Class constructor for a channel that writes where another does, and shows the same levels
+     * as that one does now, with a prefix in front of every line.
+     * @param channel - channel to write like
+     * @param prefix  - put in front of every line, e.g. the name of the data file
+     */
+    Diagnostics(Diagnostics channel, String prefix) {
+        this(channel.out, channel.level, prefix);
+    }
+
+    private Diagnostics(PrintStream out, Level level, String prefix) {
+        this.out    = out;
+        this.level  = level;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Return true if messages of a level are shown. Check it before working out the
+     * arguments of a message that is costly to make.
+     */
+    public boolean isEnabled(Level level) {
+        return level.ordinal() <= this.level.ordinal();
+    }
+
+    public void error(String format, Object... args) { log(Level.ERROR, format, args); }
+    public void info(String format, Object... args)  { log(Level.INFO,  format, args); }
+    public void debug(String format, Object... args) { log(Level.DEBUG, format, args); }
+
+    /**
+     * Queue a message, formatted with String.format by the writer thread.
+     * The arguments must not change until the message is written.
+     * @param level  - level of the message
+     * @param format - format, newlines included
+     * @param args   - arguments of the format
+     */
+    public void log(Level level, String format, Object... args) {
+        if ((level == Level.OFF) || !isEnabled(level)) { return; }
+        Message message = new Message(this, format, args, null);
+        if (level == Level.DEBUG) {
+            if (!queue.offer(message)) { dropped.incrementAndGet(); }
+            return;
+        }
+        try {
+            queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until the messages given so far, on any channel, have been written.
+     */
+    public static void flush() {
+        if (Thread.currentThread() == writer) { return; }
+        CountDownLatch flushed = new CountDownLatch(1);
+        try {
+            queue.put(new Message(null, null, null, flushed));
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Body of the writer thread.
+     */
+    private static void write() {
+        while (true) {
+            Message message;
+            try {
+                message = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (message.flushed != null) {
+                message.flushed.countDown();
+                continue;
+            }
+            PrintStream out = (message.channel.out != null) ? message.channel.out : System.out;
+            long numDropped = dropped.getAndSet(0);
+            if (numDropped > 0) {
+                out.printf("BOO! %d diagnostics dropped, the console is too slow\n", numDropped);
+            }
+            try {
+                String text = (message.args.length == 0) ? message.format : String.format(message.format, message.args);
+                out.print((message.channel.prefix == null) ? text : prefixLines(message.channel.prefix, text));
+            } catch (IllegalFormatException e) {
+                out.println("BOO!! Bad diagnostic format \""+message.format+"\": "+e);
+            }
+        }
+    }
+
+    /**
+     * Return text with a prefix in front of each line that isn't empty.
+     */
+    static String prefixLines(String prefix, String text) {
+        StringBuilder prefixed = new StringBuilder(text.length() + prefix.length());
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = (end < 0) ? text.length() : end + 1;
+            if (text.charAt(start) != '\n') {
+                prefixed.append(prefix);
+            }
+            prefixed.append(text, start, end);
+            start = end;
+        }
+        return prefixed.toString();
+    }
+}
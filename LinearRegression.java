@@ -18,6 +18,8 @@ public class LinearRegression {
             return params;
         }
         int n = x.length;
+        CalibrationEvents.RegressionFit event = new CalibrationEvents.RegressionFit();
+        event.begin();
 
         double sumx  = Arrays.stream(x).sum();
         double sumx2 = Arrays.stream(x).map(a -> a * a).sum();
@@ -37,8 +39,8 @@ public class LinearRegression {
         double beta1 = xybar / xxbar;
         double beta0 = ybar - beta1 * xbar;
 
-        // print results
-        System.out.println("y = " + beta1 + " x + " + beta0);
+        // show results
+        Diagnostics.CONSOLE.debug("y = %s x + %s\n", beta1, beta0);
 
         // analyze results
         double ssr = 0.0;      // regression sum of squares
@@ -47,13 +49,14 @@ public class LinearRegression {
             ssr += (fit - ybar) * (fit - ybar);
         }
         double R2    = ssr / yybar;
-        System.out.println("R^2 = " + R2);
+        Diagnostics.CONSOLE.debug("R^2 = %s\n", R2);
 
         // return list of parameter values, 
         // in N order of R**2 followed by constants N=0,1,2 for x**N        
         params.add(R2);
         params.add(beta0);
         params.add(beta1);
+        event.record("linear", 1, n, R2);
         return params;        
     }
 
@@ -66,6 +69,8 @@ public class LinearRegression {
         }
 //        int[] y = new int[]{1, 6, 17, 34, 57, 86, 121, 162, 209, 262, 321};
         double[] y = new double[]{7.5, 3, 0.5, 1, 3, 6, 14};
+        Diagnostics.CONSOLE.level = Diagnostics.Level.DEBUG;
         linRegression(x, y);
+        Diagnostics.flush();
     }
 }
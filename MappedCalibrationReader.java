@@ -0,0 +1,234 @@
+package calibration;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Memory-mapped reader for calibration data files.
+ *
+ * Produces the same List<CalibProfile> as CalibrationFileHandler.readCalibrationDataFile,
+ * but scans the mapped bytes directly for line ends, tabs and header keywords instead of
+ * building a String per line. Data rows are decoded in place by CalibRowDecoder and only
+ * the (rare) header lines are turned into Strings and handed to CalibProfileParser.
+ */
+public class MappedCalibrationReader {
+
+    // Size of each mapped window. Lines crossing the end of a window are re-read
+    // at the start of the next window, so files larger than 2GB are handled too.
+    static final int WINDOW_SIZE = 1 << 30;
+
+    // Header keywords, same as the String.contains checks in CalibProfileParser.
+    // A line is only turned into a String if its first field holds one of these.
+    private static final byte[][] KEYWORDS = {
+        ascii("battery voltage"),
+        ascii("power:"),
+        ascii("IMU"),
+        ascii("Stopped"),
+        ascii("Measure"),
+        ascii("Sequence:"),
+        ascii("Acceleration throttle:") };
+
+    List<CalibProfile> calibprofiles = new ArrayList<>();
+
+    // Header state and points of the profile being acquired
+    private final CalibProfileParser parser = new CalibProfileParser(false);
+
+    // Decoder for the data rows, reused for every line
+    private final CalibRowDecoder decoder = new CalibRowDecoder();
+
+    // Start of the Read stage of the profile being acquired, see CalibrationMetrics
+    private long readStart = CalibrationMetrics.READ.start();
+
+
+    /**
+     * Read data from calibration file using a memory-mapped scan.
+     * @param fileName - name of calibration data file
+     * @return         - list of calibration data points
+     */
+    public static List<CalibProfile> readCalibrationDataFile(String fileName) {
+
+        // Compressed bytes can't be scanned in place
+        if (CompressedLogInput.isCompressed(fileName)) {
+            return CalibrationFileHandler.readCalibrationDataFile(fileName);
+        }
+
+        MappedCalibrationReader reader = new MappedCalibrationReader();
+        CalibrationEvents.FileParsed event = new CalibrationEvents.FileParsed();
+        event.begin();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            Diagnostics.CONSOLE.info("Reading Vector data file (mapped): %s\n", fileName);
+            long size     = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(WINDOW_SIZE, size - position);
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean lastWindow = (position + length) == size;
+                int consumed = reader.parseBuffer(buf, lastWindow);
+                if (consumed == 0) {
+                    // a single line longer than the window, nothing more can be done with it
+                    System.out.println("BOO!! Line longer than "+WINDOW_SIZE+" bytes at offset "+position);
+                    break;
+                }
+                position += consumed;
+            }
+        }
+        catch (IOException e) {
+            System.out.println(e);
+            return null;
+        }
+        finally {
+            CalibrationFileHandler.countLines(reader.parser);
+        }
+        event.record(fileName, "mapped", reader.calibprofiles.size(), reader.parser.numLines);
+        return reader.calibprofiles;
+    }
+
+    /**
+     * Parse every complete line in a mapped window.
+     * @param buf        - mapped window of the file
+     * @param lastWindow - true if the window runs to the end of the file
+     * @return           - number of bytes consumed, i.e. the offset of the first unfinished line
+     */
+    int parseBuffer(ByteBuffer buf, boolean lastWindow) {
+        int limit = buf.limit();
+        int lineStart = 0;
+        for (int pos = 0; pos < limit; pos++) {
+            if (buf.get(pos) == '\n') {
+                int lineEnd = pos;
+                if ((lineEnd > lineStart) && (buf.get(lineEnd-1) == '\r')) { lineEnd--; }
+                parseLine(buf, lineStart, lineEnd);
+                lineStart = pos + 1;
+            }
+        }
+        // A trailing line without a newline is only complete at the end of the file
+        if (lastWindow && (lineStart < limit)) {
+            int lineEnd = limit;
+            if (buf.get(lineEnd-1) == '\r') { lineEnd--; }
+            parseLine(buf, lineStart, lineEnd);
+            lineStart = limit;
+        }
+        return lineStart;
+    }
+
+    /**
+     * Parse a single line held in buf between start (inclusive) and end (exclusive).
+     * Follows the same order of checks as CalibProfileParser.parseLine.
+     */
+    void parseLine(ByteBuffer buf, int start, int end) {
+
+        // Header keywords are only looked for in the first tab separated field
+        int headEnd = start;
+        while ((headEnd < end) && (buf.get(headEnd) != '\t')) { headEnd++; }
+
+        if (hasKeyword(buf, start, headEnd)) {
+            CalibProfile profile = parser.parseHeader(header(buf, start, headEnd));
+            if (profile != null) {
+                calibprofiles.add(profile);
+                CalibrationMetrics.READ.record(readStart);
+                readStart = CalibrationMetrics.READ.start();
+            }
+        }
+
+        // looking for something like:
+        // 005.123 : \t  50.000\t  20\t   20\t 0.520\t 0.440
+        int status = parser.isStoringRows() ? decoder.decode(buf, start, end) : CalibRowDecoder.ROW_NOT_DATA;
+        parser.addDecodedRow(decoder, status, headEnd < end);
+    }
+
+    /**
+     * Return true if any header keyword appears between start and end.
+     */
+    static boolean hasKeyword(ByteBuffer buf, int start, int end) {
+        for (byte[] keyword : KEYWORDS) {
+            if (contains(buf, start, end, keyword)) { return true; }
+        }
+        return false;
+    }
+
+    /**
+     * Return the String of the bytes between start and end.
+     */
+    static String header(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buf.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Byte level equivalent of String.contains for the bytes between start and end.
+     */
+    static boolean contains(ByteBuffer buf, int start, int end, byte[] key) {
+        int last = end - key.length;
+        byte first = key[0];
+        for (int pos = start; pos <= last; pos++) {
+            if (buf.get(pos) != first) { continue; }
+            int k = 1;
+            while ((k < key.length) && (buf.get(pos + k) == key[k])) { k++; }
+            if (k == key.length) { return true; }
+        }
+        return false;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+
+    /**
+     * Main method run at command line.
+     * Reads the same file with the line reader and the mapped reader, compares the
+     * profiles and reports the time taken by each.
+     */
+    public static void main(String[] args) {
+        String dataFile = (args.length > 0) ? args[0] : "CalibOP.txt";
+
+        long t0 = System.nanoTime();
+        List<CalibProfile> lineProfiles = CalibrationFileHandler.readCalibrationDataFile(dataFile);
+        long t1 = System.nanoTime();
+        List<CalibProfile> mappedProfiles = readCalibrationDataFile(dataFile);
+        long t2 = System.nanoTime();
+        if ((lineProfiles == null) || (mappedProfiles == null)) { return; }
+
+        System.out.printf("line reader:   %d profiles in %.1f ms\n", lineProfiles.size(),   (t1 - t0) / 1e6);
+        System.out.printf("mapped reader: %d profiles in %.1f ms\n", mappedProfiles.size(), (t2 - t1) / 1e6);
+
+        boolean same = lineProfiles.size() == mappedProfiles.size();
+        for (int pdx = 0; same && (pdx < lineProfiles.size()); pdx++) {
+            same = sameProfile(lineProfiles.get(pdx), mappedProfiles.get(pdx));
+            if (!same) {
+                System.out.printf("BOO!! profile %d differs\n", pdx);
+            }
+        }
+        System.out.println(same ? "Profiles match" : "BOO!! Profiles do not match");
+    }
+
+    static boolean sameProfile(CalibProfile a, CalibProfile b) {
+        if ((a.nominalPower != b.nominalPower) || (a.accelerationThrottle != b.accelerationThrottle) ||
+            (a.batteryVoltage != b.batteryVoltage) || !a.sequence.equals(b.sequence) ||
+            (a.leftMeasure1 != b.leftMeasure1) || (a.rightMeasure1 != b.rightMeasure1) ||
+            (a.leftMeasure2 != b.leftMeasure2) || (a.rightMeasure2 != b.rightMeasure2) ||
+            (a.calibPoints.size() != b.calibPoints.size())) {
+            return false;
+        }
+        for (int idx = 0; idx < a.calibPoints.size(); idx++) {
+            CalibPoint p = a.calibPoints.get(idx);
+            CalibPoint q = b.calibPoints.get(idx);
+            if ((p.timeStamp != q.timeStamp) || (p.leftEncoder != q.leftEncoder) || (p.rightEncoder != q.rightEncoder) ||
+                (p.leftVelocity != q.leftVelocity) || (p.rightVelocity != q.rightVelocity)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
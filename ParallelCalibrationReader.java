@@ -0,0 +1,320 @@
+package calibration;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+/**
+ * Parallel reader for a single large calibration data file.
+ *
+ * The file is split into byte ranges which are parsed at the same time on a ForkJoinPool.
+ * Each range starts on a line boundary and owns the profiles whose "IMU heading at Begin"
+ * line falls inside it. A profile still open at the end of a range is finished by reading
+ * on past the end of the range until its "Stopped" line.
+ *
+ * Header values (battery voltage, nominal power, sequence, throttle, measures) are carried
+ * from one range to the next after parsing: a profile takes the values set by lines in its
+ * own range, and any value not set there comes from the state at the end of the ranges before
+ * it. The resulting list is the same, and in the same order, as from the sequential readers.
+ */
+public class ParallelCalibrationReader {
+
+    // Ranges are never smaller than this, small files are parsed as a single range
+    static final int MIN_CHUNK_SIZE = 1 << 20;
+
+    private static final byte[] IMU   = "IMU".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BEGIN = "Begin".getBytes(StandardCharsets.US_ASCII);
+
+
+    /**
+     * Read data from calibration file in parallel on the common ForkJoinPool.
+     * @param fileName - name of calibration data file
+     * @return         - list of calibration data points
+     */
+    public static List<CalibProfile> readCalibrationDataFile(String fileName) {
+        return readCalibrationDataFile(fileName, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Read data from calibration file in parallel.
+     * @param fileName - name of calibration data file
+     * @param pool     - pool to parse the ranges of the file on
+     * @return         - list of calibration data points
+     */
+    public static List<CalibProfile> readCalibrationDataFile(String fileName, ForkJoinPool pool) {
+
+        // A compressed file can only be read from the start, decompress it in one pipeline
+        if (CompressedLogInput.isCompressed(fileName)) {
+            return CalibrationFileHandler.readCalibrationDataFile(fileName);
+        }
+
+        List<CalibProfile> calibprofiles = new ArrayList<>();
+        CalibrationEvents.FileParsed event = new CalibrationEvents.FileParsed();
+        event.begin();
+        long start = CalibrationMetrics.READ.start();
+        long numLines = 0;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            Diagnostics.CONSOLE.info("Reading Vector data file (parallel): %s\n", fileName);
+            long size = channel.size();
+
+            // Aim for a few ranges per worker so uneven ranges still balance out
+            long chunkSize = Math.max(MIN_CHUNK_SIZE, size / (4L * pool.getParallelism()) + 1);
+            chunkSize = Math.min(chunkSize, MappedCalibrationReader.WINDOW_SIZE);
+            int numChunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+
+            List<Callable<Chunk>> tasks = new ArrayList<>();
+            for (int cdx = 0; cdx < numChunks; cdx++) {
+                long nominalStart = cdx * chunkSize;
+                long nominalEnd   = Math.min(size, nominalStart + chunkSize);
+                tasks.add(() -> parseChunk(channel, size, nominalStart, nominalEnd));
+            }
+
+            // Carry the header state from range to range, in file order
+            HeaderState carried = new HeaderState(new CalibProfileParser(false), ~0);
+            for (Future<Chunk> future : pool.invokeAll(tasks)) {
+                Chunk chunk = future.get();
+                for (int pdx = 0; pdx < chunk.profiles.size(); pdx++) {
+                    carried.fillUnset(chunk.profiles.get(pdx), chunk.profileHeaderSet.get(pdx));
+                    calibprofiles.add(chunk.profiles.get(pdx));
+                }
+                carried.update(chunk.endState);
+                numLines += chunk.numLines;
+                CalibrationMetrics.COUNTERS.linesRead.add(chunk.numLines);
+                CalibrationMetrics.COUNTERS.rowsRejected.add(chunk.rowsRejected);
+            }
+        }
+        catch (IOException e) {
+            System.out.println(e);
+            return null;
+        }
+        catch (InterruptedException | ExecutionException e) {
+            System.out.println(e);
+            return null;
+        }
+        // The ranges are parsed at once, so the whole file is one run of the Read stage
+        CalibrationMetrics.READ.record(start);
+        event.record(fileName, "parallel", calibprofiles.size(), numLines);
+        return calibprofiles;
+    }
+
+    /**
+     * Parse the lines starting between nominalStart and nominalEnd.
+     * The range is moved forward to line boundaries: it starts just after the first newline
+     * at or after nominalStart-1, and so ends where the next range starts.
+     */
+    private static Chunk parseChunk(FileChannel channel, long size, long nominalStart, long nominalEnd) throws IOException {
+
+        Chunk chunk = new Chunk();
+
+        long mapStart  = Math.max(0, nominalStart - 1);
+        long mapLength = Math.min(size - mapStart, Integer.MAX_VALUE);
+        ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapLength);
+        int limit = buf.limit();
+
+        int start = lineStartAtOrAfter(buf, (int) (nominalStart - mapStart), nominalStart == 0);
+        int end   = lineStartAtOrAfter(buf, (int) (nominalEnd   - mapStart), nominalEnd   == 0);
+
+        CalibProfileParser parser  = new CalibProfileParser(false);
+        CalibRowDecoder    decoder = new CalibRowDecoder();
+
+        // The first range starts at the start of the file, any other range only has
+        // complete profiles once it has seen the Begin line of one of its own
+        boolean synced = (nominalStart == 0);
+
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineEnd(buf, lineStart);
+            int headEnd = lineStart;
+            while ((headEnd < lineEnd) && (buf.get(headEnd) != '\t')) { headEnd++; }
+
+            if (MappedCalibrationReader.hasKeyword(buf, lineStart, headEnd)) {
+                if (!synced && isBegin(buf, lineStart, headEnd)) { synced = true; }
+                CalibProfile profile = parser.parseHeader(MappedCalibrationReader.header(buf, lineStart, headEnd));
+                if ((profile != null) && synced) {
+                    chunk.profiles.add(profile);
+                    chunk.profileHeaderSet.add(parser.profileHeaderSet);
+                }
+            }
+            int status = parser.isStoringRows() ? decoder.decode(buf, lineStart, lineEnd) : CalibRowDecoder.ROW_NOT_DATA;
+            parser.addDecodedRow(decoder, status, headEnd < lineEnd);
+            lineStart = nextLine(buf, lineEnd);
+        }
+        chunk.endState = new HeaderState(parser, parser.headerSet);
+        chunk.numLines = parser.numLines;
+
+        // Finish a profile left open at the end of the range. A Begin line belongs to
+        // the next range and, like in the sequential reader, drops the open profile.
+        while (parser.isAcquiring() && (lineStart < limit)) {
+            int lineEnd = lineEnd(buf, lineStart);
+            int headEnd = lineStart;
+            while ((headEnd < lineEnd) && (buf.get(headEnd) != '\t')) { headEnd++; }
+
+            if (MappedCalibrationReader.hasKeyword(buf, lineStart, headEnd)) {
+                if (isBegin(buf, lineStart, headEnd)) { break; }
+                CalibProfile profile = parser.parseHeader(MappedCalibrationReader.header(buf, lineStart, headEnd));
+                if (profile != null) {
+                    chunk.profiles.add(profile);
+                    chunk.profileHeaderSet.add(parser.profileHeaderSet);
+                }
+            }
+            int status = parser.isStoringRows() ? decoder.decode(buf, lineStart, lineEnd) : CalibRowDecoder.ROW_NOT_DATA;
+            parser.addDecodedRow(decoder, status, headEnd < lineEnd);
+            lineStart = nextLine(buf, lineEnd);
+        }
+        // The lines of the next range are counted there, the rows rejected here are only seen here
+        chunk.rowsRejected = parser.rowsRejected;
+        if (parser.isAcquiring() && (lineStart >= limit) && ((mapStart + limit) < size)) {
+            System.out.println("BOO!! Profile longer than "+Integer.MAX_VALUE+" bytes near offset "+(mapStart + start));
+        }
+        return chunk;
+    }
+
+    /**
+     * Return the offset of the first line starting at or after pos.
+     * pos itself is a line start if the byte before it is a newline.
+     */
+    private static int lineStartAtOrAfter(ByteBuffer buf, int pos, boolean startOfFile) {
+        if (startOfFile) { return pos; }
+        int limit = buf.limit();
+        for (int idx = pos - 1; idx < limit; idx++) {
+            if (buf.get(idx) == '\n') { return idx + 1; }
+        }
+        return limit;
+    }
+
+    /**
+     * Return the end of the line starting at lineStart, not counting the line terminator.
+     */
+    private static int lineEnd(ByteBuffer buf, int lineStart) {
+        int limit = buf.limit();
+        int pos = lineStart;
+        while ((pos < limit) && (buf.get(pos) != '\n')) { pos++; }
+        if ((pos > lineStart) && (buf.get(pos-1) == '\r')) { pos--; }
+        return pos;
+    }
+
+    /**
+     * Return the start of the line after the one ending at lineEnd.
+     */
+    private static int nextLine(ByteBuffer buf, int lineEnd) {
+        int limit = buf.limit();
+        int pos = lineEnd;
+        while ((pos < limit) && (buf.get(pos) != '\n')) { pos++; }
+        return pos + 1;
+    }
+
+    private static boolean isBegin(ByteBuffer buf, int start, int end) {
+        return MappedCalibrationReader.contains(buf, start, end, IMU) &&
+               MappedCalibrationReader.contains(buf, start, end, BEGIN);
+    }
+
+
+    /**
+     * Profiles parsed from one range of the file.
+     */
+    private static class Chunk {
+        List<CalibProfile> profiles         = new ArrayList<>();
+        List<Integer>      profileHeaderSet = new ArrayList<>();    // header values set within the range for each profile
+        HeaderState        endState;                                // header values set within the range, at its end
+        long               numLines;                                // lines starting within the range
+        long               rowsRejected;                            // rows of its profiles rejected, see CalibProfileParser
+    }
+
+    /**
+     * Snapshot of header values, with the set of values that are known.
+     */
+    private static class HeaderState {
+        int    headerSet;
+        double batteryVoltage;
+        double nominalPower;
+        double accelerationThrottle;
+        String sequence;
+        double leftMeasure1;
+        double rightMeasure1;
+        double leftMeasure2;
+        double rightMeasure2;
+
+        HeaderState(CalibProfileParser parser, int headerSet) {
+            this.headerSet            = headerSet;
+            this.batteryVoltage       = parser.batteryVoltage;
+            this.nominalPower         = parser.nominalPower;
+            this.accelerationThrottle = parser.accelerationThrottle;
+            this.sequence             = parser.sequence;
+            this.leftMeasure1         = parser.leftMeasure1;
+            this.rightMeasure1        = parser.rightMeasure1;
+            this.leftMeasure2         = parser.leftMeasure2;
+            this.rightMeasure2        = parser.rightMeasure2;
+        }
+
+        /**
+         * Fill in the values of a profile that were not set within its own range.
+         */
+        void fillUnset(CalibProfile profile, int profileSet) {
+            if ((profileSet & CalibProfileParser.BATTERY_VOLTAGE)       == 0) { profile.batteryVoltage       = batteryVoltage; }
+            if ((profileSet & CalibProfileParser.NOMINAL_POWER)         == 0) { profile.nominalPower         = nominalPower; }
+            if ((profileSet & CalibProfileParser.ACCELERATION_THROTTLE) == 0) { profile.accelerationThrottle = accelerationThrottle; }
+            if ((profileSet & CalibProfileParser.SEQUENCE)              == 0) { profile.sequence             = sequence; }
+            if ((profileSet & CalibProfileParser.LEFT_MEASURE1)         == 0) { profile.leftMeasure1         = leftMeasure1; }
+            if ((profileSet & CalibProfileParser.RIGHT_MEASURE1)        == 0) { profile.rightMeasure1        = rightMeasure1; }
+            if ((profileSet & CalibProfileParser.LEFT_MEASURE2)         == 0) { profile.leftMeasure2         = leftMeasure2; }
+            if ((profileSet & CalibProfileParser.RIGHT_MEASURE2)        == 0) { profile.rightMeasure2        = rightMeasure2; }
+        }
+
+        /**
+         * Take on the values set by a later range.
+         */
+        void update(HeaderState later) {
+            int set = later.headerSet;
+            if ((set & CalibProfileParser.BATTERY_VOLTAGE)       != 0) { batteryVoltage       = later.batteryVoltage; }
+            if ((set & CalibProfileParser.NOMINAL_POWER)         != 0) { nominalPower         = later.nominalPower; }
+            if ((set & CalibProfileParser.ACCELERATION_THROTTLE) != 0) { accelerationThrottle = later.accelerationThrottle; }
+            if ((set & CalibProfileParser.SEQUENCE)              != 0) { sequence             = later.sequence; }
+            if ((set & CalibProfileParser.LEFT_MEASURE1)         != 0) { leftMeasure1         = later.leftMeasure1; }
+            if ((set & CalibProfileParser.RIGHT_MEASURE1)        != 0) { rightMeasure1        = later.rightMeasure1; }
+            if ((set & CalibProfileParser.LEFT_MEASURE2)         != 0) { leftMeasure2         = later.leftMeasure2; }
+            if ((set & CalibProfileParser.RIGHT_MEASURE2)        != 0) { rightMeasure2        = later.rightMeasure2; }
+        }
+    }
+
+
+    /**
+     * Main method run at command line.
+     * Reads the same file with the mapped reader and the parallel reader, compares the
+     * profiles and reports the time taken by each.
+     */
+    public static void main(String[] args) {
+        String dataFile = (args.length > 0) ? args[0] : "CalibOP.txt";
+
+        long t0 = System.nanoTime();
+        List<CalibProfile> mappedProfiles = MappedCalibrationReader.readCalibrationDataFile(dataFile);
+        long t1 = System.nanoTime();
+        List<CalibProfile> parallelProfiles = readCalibrationDataFile(dataFile);
+        long t2 = System.nanoTime();
+        if ((mappedProfiles == null) || (parallelProfiles == null)) { return; }
+
+        System.out.printf("mapped reader:   %d profiles in %.1f ms\n", mappedProfiles.size(),   (t1 - t0) / 1e6);
+        System.out.printf("parallel reader: %d profiles in %.1f ms\n", parallelProfiles.size(), (t2 - t1) / 1e6);
+
+        boolean same = mappedProfiles.size() == parallelProfiles.size();
+        for (int pdx = 0; same && (pdx < mappedProfiles.size()); pdx++) {
+            same = MappedCalibrationReader.sameProfile(mappedProfiles.get(pdx), parallelProfiles.get(pdx));
+            if (!same) {
+                System.out.printf("BOO!! profile %d differs\n", pdx);
+            }
+        }
+        System.out.println(same ? "Profiles match" : "BOO!! Profiles do not match");
+    }
+}
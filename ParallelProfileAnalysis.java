@@ -0,0 +1,82 @@
+package calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+
+/**
+ * Runs the per-profile part of an analysis on several threads.
+ *
+ * Each profile is analyzed on its own by a function that must not touch shared state, and
+ * its result is then applied to the analysis on the calling thread, in the order the
+ * profiles were read. Since the results are combined in the same order as a sequential run,
+ * the parameters come out exactly the same, whatever the number of threads.
+ *
+ * Profiles are taken from the input BATCH_PER_THREAD per thread at a time, so a streamed
+ * data file is not read into memory all at once.
+ */
+public class ParallelProfileAnalysis {
+
+    static final int BATCH_PER_THREAD = 16;
+
+
+    /**
+     * Analyze all profiles and apply their results in order.
+     * @param profiles   - profiles to analyze
+     * @param numThreads - number of threads to analyze on, 1 analyzes on the calling thread
+     * @param analyze    - analysis of one profile
+     * @param apply      - called with the result of each profile, in profile order
+     */
+    public static <R> void run(Iterable<CalibProfile> profiles, int numThreads,
+                               Function<CalibProfile, R> analyze, Consumer<R> apply) {
+
+        if (numThreads <= 1) {
+            for (CalibProfile profile : profiles) {
+                apply.accept(analyze.apply(profile));
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            int batchSize = BATCH_PER_THREAD * numThreads;
+            List<CalibProfile> batch = new ArrayList<>(batchSize);
+            for (CalibProfile profile : profiles) {
+                batch.add(profile);
+                if (batch.size() == batchSize) {
+                    runBatch(pool, batch, analyze, apply);
+                    batch.clear();
+                }
+            }
+            runBatch(pool, batch, analyze, apply);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static <R> void runBatch(ForkJoinPool pool, List<CalibProfile> batch,
+                                     Function<CalibProfile, R> analyze, Consumer<R> apply) {
+        if (batch.isEmpty()) { return; }
+        List<R> results;
+        try {
+            results = pool.submit(() -> batch.parallelStream().map(analyze).collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while analyzing profiles", e);
+        } catch (ExecutionException e) {
+            // same failure as the sequential run would have had
+            if (e.getCause() instanceof RuntimeException) { throw (RuntimeException) e.getCause(); }
+            if (e.getCause() instanceof Error)            { throw (Error) e.getCause(); }
+            throw new IllegalStateException(e.getCause());
+        }
+        // toList keeps the order of the batch
+        for (R result : results) {
+            apply.accept(result);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package calibration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Least squares fit of a polynomial of any degree.
+ *
+ * x is shifted and scaled to about -1..1 using its first and last values, so the powers of
+ * large encoder tick values don't lose the fit to rounding. The normal equations are built in
+ * a single pass over the points, from the sums of the powers of x and of the powers times y,
+ * and solved with a Cholesky decomposition. The coefficients are then turned back into
+ * coefficients of the original x.
+ *
+ * All arrays are allocated once for the degree, so a fitter can be reused for any number of
+ * fits without allocating. A fitter is not thread safe, use one per thread.
+ */
+public class PolynomialFitter {
+
+    final int degree;
+
+    // Results of the last fit
+    double[] coefficients;      // constant first, then x, x^2, ...
+    double   rSquared;
+
+    // Workspace
+    private final double[] powerSums;       // sum of t^k, k = 0..2*degree
+    private final double[] momentSums;      // sum of t^k * y, k = 0..degree
+    private final double[] normal;          // normal equations, then their Cholesky factor
+    private final double[] scaled;          // coefficients of t
+    private final double[] binomial;        // row of Pascal's triangle
+
+
+    /**
+     * Primary class constructor.
+     * @param degree - highest power of x in the polynomial
+     */
+    public PolynomialFitter(int degree) {
+        if (degree < 0) {
+            throw new IllegalArgumentException("degree must not be negative: "+degree);
+        }
+        int m = degree + 1;
+        this.degree       = degree;
+        this.coefficients = new double[m];
+        this.powerSums    = new double[2 * degree + 1];
+        this.momentSums   = new double[m];
+        this.normal       = new double[m * m];
+        this.scaled       = new double[m];
+        this.binomial     = new double[m];
+    }
+
+    /**
+     * Fit the polynomial to points from..to-1 of x and y.
+     * The result is left in coefficients and rSquared, which are NaN if the points
+     * don't fix a polynomial of this degree (e.g. not more points than the degree).
+     * @return - true if the fit succeeded
+     */
+    public boolean fit(double[] x, double[] y, int from, int to) {
+        CalibrationEvents.RegressionFit event = new CalibrationEvents.RegressionFit();
+        event.begin();
+        boolean fitted = fitPoints(x, y, from, to);
+        event.record("polynomial", degree, Math.max(0, to - from), rSquared);
+        return fitted;
+    }
+
+    private boolean fitPoints(double[] x, double[] y, int from, int to) {
+
+        int m = degree + 1;
+        int n = to - from;
+        if (n <= 0) {
+            Arrays.fill(coefficients, Double.NaN);
+            rSquared = Double.NaN;
+            return false;
+        }
+
+        // Map x to t = (x - shift) / scale
+        double shift = 0.5 * (x[from] + x[to-1]);
+        double scale = 0.5 * Math.abs(x[to-1] - x[from]);
+        if (!(scale > 0.0) || Double.isInfinite(scale)) { scale = 1.0; }
+        double invScale = 1.0 / scale;
+
+        // One pass for the normal equations
+        Arrays.fill(powerSums, 0.0);
+        Arrays.fill(momentSums, 0.0);
+        double sumY = 0.0;
+        for (int i = from; i < to; i++) {
+            double t  = (x[i] - shift) * invScale;
+            double yi = y[i];
+            double power = 1.0;
+            for (int k = 0; k <= degree; k++) {
+                powerSums[k]  += power;
+                momentSums[k] += power * yi;
+                power *= t;
+            }
+            for (int k = degree + 1; k <= 2 * degree; k++) {
+                powerSums[k] += power;
+                power *= t;
+            }
+            sumY += yi;
+        }
+        for (int r = 0; r < m; r++) {
+            for (int c = 0; c < m; c++) {
+                normal[r * m + c] = powerSums[r + c];
+            }
+        }
+
+        if (!choleskySolve(m)) {
+            Arrays.fill(coefficients, Double.NaN);
+            rSquared = Double.NaN;
+            return false;
+        }
+
+        // R^2 from the residuals, evaluating the polynomial in t with Horner's rule
+        double ymean = sumY / n;
+        double totalSumOfSquares = 0.0;
+        double residualSumOfSquares = 0.0;
+        for (int i = from; i < to; i++) {
+            double t = (x[i] - shift) * invScale;
+            double fit = scaled[degree];
+            for (int k = degree - 1; k >= 0; k--) {
+                fit = fit * t + scaled[k];
+            }
+            double dy = y[i] - ymean;
+            double residual = y[i] - fit;
+            totalSumOfSquares    += dy * dy;
+            residualSumOfSquares += residual * residual;
+        }
+        rSquared = 1 - (residualSumOfSquares / totalSumOfSquares);
+
+        unscale(shift, invScale);
+        return true;
+    }
+
+    /**
+     * Return the result of the last fit.
+     * @return - R^2 followed by the coefficients of x^0, x^1, ... x^degree
+     */
+    public List<Double> params() {
+        List<Double> params = new ArrayList<>();
+        params.add(rSquared);
+        for (double coefficient : coefficients) {
+            params.add(coefficient);
+        }
+        return params;
+    }
+
+    /**
+     * Solve normal * scaled = momentSums in place by Cholesky decomposition.
+     * @return - false if the normal equations are not positive definite
+     */
+    private boolean choleskySolve(int m) {
+        // normal = L * L^T, L is stored in the lower triangle
+        for (int j = 0; j < m; j++) {
+            double diagonal = normal[j * m + j];
+            for (int k = 0; k < j; k++) {
+                diagonal -= normal[j * m + k] * normal[j * m + k];
+            }
+            if (!(diagonal > 0.0)) { return false; }
+            double ljj = Math.sqrt(diagonal);
+            normal[j * m + j] = ljj;
+            for (int i = j + 1; i < m; i++) {
+                double sum = normal[i * m + j];
+                for (int k = 0; k < j; k++) {
+                    sum -= normal[i * m + k] * normal[j * m + k];
+                }
+                normal[i * m + j] = sum / ljj;
+            }
+        }
+        // L * z = momentSums
+        for (int i = 0; i < m; i++) {
+            double sum = momentSums[i];
+            for (int k = 0; k < i; k++) {
+                sum -= normal[i * m + k] * scaled[k];
+            }
+            scaled[i] = sum / normal[i * m + i];
+        }
+        // L^T * scaled = z
+        for (int i = m - 1; i >= 0; i--) {
+            double sum = scaled[i];
+            for (int k = i + 1; k < m; k++) {
+                sum -= normal[k * m + i] * scaled[k];
+            }
+            scaled[i] = sum / normal[i * m + i];
+        }
+        return true;
+    }
+
+    /**
+     * Turn the coefficients of t = (x - shift) * invScale into coefficients of x.
+     * sum_k s_k t^k = sum_k s_k invScale^k sum_j C(k,j) x^j (-shift)^(k-j)
+     */
+    private void unscale(double shift, double invScale) {
+        Arrays.fill(coefficients, 0.0);
+        double scalePower = 1.0;
+        for (int k = 0; k <= degree; k++) {
+            // binomial holds row k of Pascal's triangle
+            binomial[k] = 1.0;
+            for (int j = k - 1; j > 0; j--) {
+                binomial[j] += binomial[j - 1];
+            }
+            binomial[0] = 1.0;
+
+            double sk = scaled[k] * scalePower;
+            double shiftPower = 1.0;        // (-shift)^(k-j), starting at j = k
+            for (int j = k; j >= 0; j--) {
+                coefficients[j] += sk * binomial[j] * shiftPower;
+                shiftPower *= -shift;
+            }
+            scalePower *= invScale;
+        }
+    }
+}
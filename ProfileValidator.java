@@ -0,0 +1,87 @@
+package calibration;
+
+
+/**
+ * Validity check of calibration profiles, shared by all analyses.
+ *
+ * The timestamp, and left,right encoders should all be strictly increasing.
+ * If a robot wasn't fully stopped it may show encoder readings from a previous run.
+ * Using data from a robot that wasn't stopped will give a bad regression.
+ *
+ * Profiles from CalibProfileParser have already been checked as their rows were read,
+ * other profiles are checked here the first time they are asked about.
+ */
+public class ProfileValidator {
+
+    /**
+     * Check a profile.
+     * As soon as any invalidity is found then this entire data set is bad, don't need to look for
+     * any other invalidities for the given profile.
+     * @param profile - profile to check
+     * @return        - null if the profile is valid, else the reason it is not, ending in a newline
+     */
+    public static String check(CalibProfile profile) {
+        long start = CalibrationMetrics.VALIDATE.start();
+        if (profile.validity == CalibProfile.UNCHECKED) {
+            scan(profile);
+        }
+        String problem = reason(profile);
+        if (problem == null) {
+            CalibrationMetrics.COUNTERS.profilesValid.increment();
+        } else {
+            CalibrationMetrics.COUNTERS.profilesInvalid.increment();
+        }
+        CalibrationMetrics.VALIDATE.record(start);
+        return problem;
+    }
+
+    /**
+     * Find the first row of a profile that is out of order, and record it in the profile.
+     */
+    static void scan(CalibProfile profile) {
+
+        int numPoints = profile.numPoints;
+        double[] ts = profile.timeStamps;
+        int[]    le = profile.leftEncoders;
+        int[]    re = profile.rightEncoders;
+
+        for (int vdx = 1; vdx < numPoints; vdx++) {
+            int problem = (ts[vdx] < ts[vdx-1]) ? CalibProfile.TIME_NOT_INCREASING :
+                          (le[vdx] < le[vdx-1]) ? CalibProfile.LEFT_ENCODER_NOT_INCREASING :
+                          (re[vdx] < re[vdx-1]) ? CalibProfile.RIGHT_ENCODER_NOT_INCREASING : CalibProfile.VALID;
+            if (problem != CalibProfile.VALID) {
+                profile.validity   = problem;
+                profile.invalidIdx = vdx;
+                return;
+            }
+        }
+        profile.validity   = CalibProfile.VALID;
+        profile.invalidIdx = -1;
+    }
+
+    /**
+     * Return why a checked profile is not valid, or null if it is.
+     * The reason is only formatted when asked for, and with the profile's final nominal power.
+     */
+    static String reason(CalibProfile profile) {
+
+        int vdx = profile.invalidIdx;
+        double[] ts = profile.timeStamps;
+        int[]    le = profile.leftEncoders;
+        int[]    re = profile.rightEncoders;
+
+        switch (profile.validity) {
+            case CalibProfile.TIME_NOT_INCREASING:
+                return String.format("BOO! power %f time %f at %d not increasing over time %f at %d\n",
+                                     profile.nominalPower, ts[vdx], vdx, ts[vdx-1], vdx-1);
+            case CalibProfile.LEFT_ENCODER_NOT_INCREASING:
+                return String.format("BOO! power %f left encoder %d at %d not increasing over %d at %d\n",
+                                     profile.nominalPower, le[vdx], vdx, le[vdx-1], vdx-1);
+            case CalibProfile.RIGHT_ENCODER_NOT_INCREASING:
+                return String.format("BOO! power %f right encoder %d at %d not increasing over %d at %d\n",
+                                     profile.nominalPower, re[vdx], vdx, re[vdx-1], vdx-1);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Single pass least squares fit of a line and a quadratic to points added one at a time.
+ *
+ * Keeps the count, the means of x, x^2 and y, and their co-moments (the sums of products
+ * of deviations from the means), updated Welford style as each point is added. Sums of
+ * deviations stay small where the raw sums of x^2 and x^4 used by LinearRegression and
+ * PolynomialRegression would swamp the fit for large encoder tick values.
+ *
+ * Two accumulators over different points can be merged, e.g. the ranges of a profile fitted
+ * on different threads, or an earlier fit and the points added since. Adding a point or
+ * merging is O(1), and the fits can be taken at any time without ending the accumulation.
+ */
+public class RegressionAccumulator {
+
+    long   n = 0;
+
+    // Means of x, x^2 and y
+    double meanX;
+    double meanX2;
+    double meanY;
+
+    // Co-moments, e.g. cXY is the sum of (x - meanX) * (y - meanY)
+    double cXX;
+    double cXX2;
+    double cX2X2;
+    double cXY;
+    double cX2Y;
+    double cYY;
+
+
+    /**
+     * Add one point.
+     */
+    public void add(double x, double y) {
+        double x2 = x * x;
+        double dX  = x  - meanX;
+        double dX2 = x2 - meanX2;
+        double dY  = y  - meanY;
+        n++;
+        meanX  += dX  / n;
+        meanX2 += dX2 / n;
+        meanY  += dY  / n;
+        // deviation from the old mean times deviation from the new mean
+        double eX  = x  - meanX;
+        double eX2 = x2 - meanX2;
+        double eY  = y  - meanY;
+        cXX   += dX  * eX;
+        cXX2  += dX  * eX2;
+        cX2X2 += dX2 * eX2;
+        cXY   += dX  * eY;
+        cX2Y  += dX2 * eY;
+        cYY   += dY  * eY;
+    }
+
+    /**
+     * Add all points of two arrays.
+     */
+    public void add(double[] x, double[] y, int from, int to) {
+        for (int i = from; i < to; i++) {
+            add(x[i], y[i]);
+        }
+    }
+
+    /**
+     * Add the points of another accumulator to this one, the other is left unchanged.
+     */
+    public void merge(RegressionAccumulator other) {
+        if (other.n == 0) { return; }
+        if (n == 0) {
+            copyFrom(other);
+            return;
+        }
+        long   total = n + other.n;
+        double dX  = other.meanX  - meanX;
+        double dX2 = other.meanX2 - meanX2;
+        double dY  = other.meanY  - meanY;
+        double weight = (double) n * other.n / total;
+
+        cXX   += other.cXX   + dX  * dX  * weight;
+        cXX2  += other.cXX2  + dX  * dX2 * weight;
+        cX2X2 += other.cX2X2 + dX2 * dX2 * weight;
+        cXY   += other.cXY   + dX  * dY  * weight;
+        cX2Y  += other.cX2Y  + dX2 * dY  * weight;
+        cYY   += other.cYY   + dY  * dY  * weight;
+
+        double share = (double) other.n / total;
+        meanX  += dX  * share;
+        meanX2 += dX2 * share;
+        meanY  += dY  * share;
+        n = total;
+    }
+
+    /**
+     * Forget all points added so far.
+     */
+    public void clear() {
+        n = 0;
+        meanX = meanX2 = meanY = 0.0;
+        cXX = cXX2 = cX2X2 = cXY = cX2Y = cYY = 0.0;
+    }
+
+    /**
+     * Return the number of points added.
+     */
+    public long count() {
+        return n;
+    }
+
+    /**
+     * Fit y = beta0 + beta1 x to the points so far.
+     * @return - R^2, beta0, beta1, in the same order as LinearRegression.linRegression()
+     */
+    public List<Double> linear() {
+        CalibrationEvents.RegressionFit event = new CalibrationEvents.RegressionFit();
+        event.begin();
+        double beta1 = cXY / cXX;
+        double beta0 = meanY - beta1 * meanX;
+        double R2    = (beta1 * cXY) / cYY;
+
+        List<Double> params = new ArrayList<>();
+        params.add(R2);
+        params.add(beta0);
+        params.add(beta1);
+        event.record("accumulated", 1, n, R2);
+        return params;
+    }
+
+    /**
+     * Fit y = c0 + c1 x + c2 x^2 to the points so far.
+     * @return - R^2, c0, c1, c2, in the same order as PolynomialRegression.polyRegression()
+     */
+    public List<Double> quadratic() {
+        CalibrationEvents.RegressionFit event = new CalibrationEvents.RegressionFit();
+        event.begin();
+        // Centered normal equations for c1 and c2, c0 follows from the means
+        double det = cXX * cX2X2 - cXX2 * cXX2;
+        double c1  = (cXY * cX2X2 - cXX2 * cX2Y) / det;
+        double c2  = (cXX * cX2Y  - cXX2 * cXY)  / det;
+        double c0  = meanY - c1 * meanX - c2 * meanX2;
+
+        double residualSumOfSquares = cYY - c1 * cXY - c2 * cX2Y;
+        double rSquared = 1 - (residualSumOfSquares / cYY);
+
+        List<Double> params = new ArrayList<>();
+        params.add(rSquared);
+        params.add(c0);
+        params.add(c1);
+        params.add(c2);
+        event.record("accumulated", 2, n, rSquared);
+        return params;
+    }
+
+    private void copyFrom(RegressionAccumulator other) {
+        n      = other.n;
+        meanX  = other.meanX;
+        meanX2 = other.meanX2;
+        meanY  = other.meanY;
+        cXX    = other.cXX;
+        cXX2   = other.cXX2;
+        cX2X2  = other.cX2X2;
+        cXY    = other.cXY;
+        cX2Y   = other.cX2Y;
+        cYY    = other.cYY;
+    }
+
+
+    /**
+     * Fits the sample data of LinearRegression and PolynomialRegression, once point by
+     * point and once as two merged halves.
+     */
+    public static void main(String[] args) {
+        double[] x = new double[]{-3, -2, -1, 0, 1, 2, 3};
+        double[] y = new double[]{7.5, 3, 0.5, 1, 3, 6, 14};
+
+        RegressionAccumulator all = new RegressionAccumulator();
+        all.add(x, y, 0, x.length);
+        System.out.println("linear    R^2, beta0, beta1  = " + all.linear());
+        System.out.println("quadratic R^2, c0, c1, c2    = " + all.quadratic());
+
+        RegressionAccumulator first  = new RegressionAccumulator();
+        RegressionAccumulator second = new RegressionAccumulator();
+        first.add(x, y, 0, 3);
+        second.add(x, y, 3, x.length);
+        first.merge(second);
+        System.out.println("merged    R^2, c0, c1, c2    = " + first.quadratic());
+    }
+}
@@ -0,0 +1,254 @@
+package calibration;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Cache of analysis results, so a data file that has already been analyzed is not analyzed again.
+ *
+ * An entry is keyed by the SHA-256 of the content of the data file and the configuration of
+ * the analysis, see AnalysisStage.config(), which holds the version of the analyzer and its
+ * thresholds. A data file that is renamed, copied or touched still hits, a changed data file
+ * or analyzer misses. Entries are small text files in the cache directory, named <key>.result:
+ *
+ *      valid = true
+ *      profiles = 48
+ *      the parameters, as written to the parameter file
+ *
+ * The cache is bounded by the total bytes of its entries. Each hit touches the modification time
+ * of its entry, and when a new entry takes the cache over its bound the least recently used
+ * entries are deleted until it is back under 3/4 of it. Entries are written under a temporary
+ * name and moved into place, so several programs can share a cache directory.
+ */
+public class ResultCache {
+
+    static final long   DEFAULT_MAX_MB = 16;
+    static final String SUFFIX         = ".result";
+
+    final Path dir;
+    final long maxBytes;
+
+    private long totalBytes = -1;       // bytes of the entries, counted when first needed
+
+
+    /**
+     * A cached result.
+     */
+    static class Entry {
+        boolean valid;          // all profiles were valid
+        int     numProfiles;    // profiles in the data file
+        String  parameters;     // as written to the parameter file
+    }
+
+
+    /**
+     * Primary class constructor.
+     * @param dir      - directory of the cache, made when the first entry is written
+     * @param maxBytes - bound on the total bytes of the entries
+     */
+    ResultCache(String dir, long maxBytes) {
+        this.dir      = Paths.get(dir);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the key of an analysis of a data file.
+     * @param dataFile - name of the data file
+     * @param config   - configuration of the analysis, see AnalysisStage.config()
+     * @return         - hex SHA-256 of the file content and the configuration, or null if the file can't be read
+     */
+    static String key(String dataFile, String config) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every JVM has SHA-256
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(dataFile), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        digest.update((byte) 0);
+        digest.update(config.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Return the cached result for a key, marking it as used.
+     * @return - the result, or null if there is none
+     */
+    Entry get(String key) {
+        if (key == null) { return null; }
+        Path path = dir.resolve(key + SUFFIX);
+        String text;
+        try {
+            text = Files.readString(path, StandardCharsets.UTF_8);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println("Ignoring result cache entry "+path+": "+e);
+            return null;
+        }
+
+        // valid = ..., profiles = ..., then the parameters
+        int validEnd    = text.indexOf('\n');
+        int profilesEnd = (validEnd < 0) ? -1 : text.indexOf('\n', validEnd + 1);
+        if ((profilesEnd < 0) || !text.startsWith("valid = ") || !text.startsWith("profiles = ", validEnd + 1)) {
+            System.out.println("Ignoring result cache entry "+path+": not a result");
+            return null;
+        }
+        Entry entry = new Entry();
+        entry.valid = Boolean.parseBoolean(text.substring("valid = ".length(), validEnd));
+        try {
+            entry.numProfiles = Integer.parseInt(text.substring(validEnd + 1 + "profiles = ".length(), profilesEnd));
+        } catch (NumberFormatException e) {
+            entry.numProfiles = -1;
+        }
+        if (entry.numProfiles < 0) {
+            // written without a count, analyze again so the entry is replaced
+            return null;
+        }
+        entry.parameters = text.substring(profilesEnd + 1);
+        return entry;
+    }
+
+    /**
+     * Store the result of an analysis, deleting the least recently used entries if the cache gets too big.
+     * @param key         - key of the analysis, see key(); nothing is stored if null
+     * @param valid       - true if all profiles were valid
+     * @param numProfiles - profiles in the data file
+     * @param parameters  - as written to the parameter file
+     */
+    synchronized void put(String key, boolean valid, int numProfiles, String parameters) {
+        if (key == null) { return; }
+        Path path = dir.resolve(key + SUFFIX);
+        byte[] bytes = ("valid = " + valid + "\nprofiles = " + numProfiles + "\n" + parameters).getBytes(StandardCharsets.UTF_8);
+        try {
+            Files.createDirectories(dir);
+            if (totalBytes < 0) { totalBytes = entries().stream().mapToLong(e -> e.size).sum(); }
+            long oldSize = Files.isRegularFile(path) ? Files.size(path) : 0;
+
+            Path temp = Files.createTempFile(dir, key, ".tmp");
+            try {
+                Files.write(temp, bytes);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            totalBytes += bytes.length - oldSize;
+            if (totalBytes > maxBytes) {
+                evict(path);
+            }
+        } catch (IOException e) {
+            System.out.println("BOO!! Failed to write result cache entry "+path+": "+e);
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is under 3/4 of its bound.
+     * @param keep - entry that was just written, deleted last
+     */
+    private void evict(Path keep) throws IOException {
+        List<CachedFile> entries = entries();
+        entries.sort(Comparator.comparing((CachedFile e) -> e.path.equals(keep))
+                               .thenComparingLong(e -> e.lastUsed));
+        totalBytes = entries.stream().mapToLong(e -> e.size).sum();
+        for (CachedFile entry : entries) {
+            if (totalBytes <= maxBytes * 3 / 4) { break; }
+            try {
+                Files.deleteIfExists(entry.path);
+            } catch (IOException e) {
+                // another program may be using or deleting it, leave it for next time
+                continue;
+            }
+            totalBytes -= entry.size;
+        }
+    }
+
+    private static class CachedFile {
+        Path path;
+        long size;
+        long lastUsed;
+    }
+
+    /**
+     * Return the entries in the cache directory.
+     */
+    private List<CachedFile> entries() throws IOException {
+        List<CachedFile> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                CachedFile entry = new CachedFile();
+                entry.path = path;
+                try {
+                    entry.size     = Files.size(path);
+                    entry.lastUsed = Files.getLastModifiedTime(path).toMillis();
+                } catch (NoSuchFileException e) {
+                    continue;       // deleted by another program meanwhile
+                }
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Write the parameters of a cached result to a parameter file, unless it already holds them.
+     * @return - true if the parameter file holds the parameters
+     */
+    static boolean writeParameters(String outFile, String parameters) {
+        Path path = Paths.get(outFile);
+        try {
+            if (Files.isRegularFile(path) && Files.readString(path, StandardCharsets.UTF_8).equals(parameters)) {
+                return true;
+            }
+        } catch (IOException e) {
+            // unreadable, write it again
+        }
+        BufferedWriter writer = CalibrationFileHandler.openWriteFile(outFile);
+        if (writer == null) { return false; }
+        long start = CalibrationMetrics.WRITE.start();
+        try {
+            writer.write(parameters);
+            writer.close();
+            CalibrationMetrics.WRITE.record(start);
+            return true;
+        } catch (IOException e) {
+            System.out.printf("\nBOO! Failed to write to Output file %s.\n", outFile);
+            return false;
+        }
+    }
+}
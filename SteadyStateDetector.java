@@ -0,0 +1,151 @@
+package calibration;
+
+
+/**
+ * Finds where the left and right velocities of a profile settle to a steady state.
+ *
+ * The steady state starts at the first sample idx whose window, from idx up to and including
+ * the first sample at least timeFlatness later, has every left velocity and every right
+ * velocity within tolerance of the others. The velocity range of each window is kept with
+ * monotonic deques while the window slides along the profile, so the search is linear in the
+ * number of samples instead of rescanning every window.
+ *
+ * The timestamps must not decrease, which the validity check of the analyzers makes sure of.
+ * A detector keeps its deques between calls, so reuse one for many profiles.
+ */
+public class SteadyStateDetector {
+
+    double timeFlatness;    // ms
+    double tolerance;       // largest spread of velocities in a steady window
+
+    // Results of the last detect()
+    int    steadyIdx = -1;          // first sample of the steady window
+    int    steadyEndIdx = -1;       // last sample of the steady window
+    double steadyLeftVelocity;      // mean left velocity over the steady window
+    double steadyRightVelocity;     // mean right velocity over the steady window
+
+    // Indices of the window samples, in order of decreasing velocity for the max
+    // deques and increasing velocity for the min deques. Every sample is added once,
+    // so an array per deque with a head and tail index is enough.
+    private int[] maxLeft  = new int[0];
+    private int[] minLeft  = new int[0];
+    private int[] maxRight = new int[0];
+    private int[] minRight = new int[0];
+
+
+    /**
+     * Class constructor with the thresholds used by CalibrateAccel.
+     * By observation, the Hub reports velocites to the 0.02 ticks/millisecond.
+     */
+    public SteadyStateDetector() {
+        this(100.0, 0.021);
+    }
+
+    /**
+     * Primary class constructor.
+     * @param timeFlatness - how long the velocities must stay steady, in ms
+     * @param tolerance    - largest spread of velocities allowed in that time
+     */
+    public SteadyStateDetector(double timeFlatness, double tolerance) {
+        this.timeFlatness = timeFlatness;
+        this.tolerance    = tolerance;
+    }
+
+    /**
+     * Look for the first steady window of a profile.
+     * @param timeStamp     - timestamps, not decreasing
+     * @param leftVelocity  - left velocities
+     * @param rightVelocity - right velocities
+     * @param numPoints     - number of samples to use from the arrays
+     * @return              - true if a steady window was found, its results are then in the fields
+     */
+    public boolean detect(double[] timeStamp, double[] leftVelocity, double[] rightVelocity, int numPoints) {
+
+        steadyIdx    = -1;
+        steadyEndIdx = -1;
+        if (maxLeft.length < numPoints) {
+            maxLeft  = new int[numPoints];
+            minLeft  = new int[numPoints];
+            maxRight = new int[numPoints];
+            minRight = new int[numPoints];
+        }
+        int maxLeftHead  = 0, maxLeftTail  = 0;
+        int minLeftHead  = 0, minLeftTail  = 0;
+        int maxRightHead = 0, maxRightTail = 0;
+        int minRightHead = 0, minRightTail = 0;
+
+        int endIdx = 0;     // last sample of the window
+        int added  = 0;     // samples added to the deques so far
+        for (int idx = 0; idx < numPoints; idx++) {
+
+            // The window ends at the first sample at least timeFlatness after its start
+            double endTime = timeStamp[idx] + timeFlatness;
+            if (endIdx < idx) { endIdx = idx; }
+            while ((endIdx < numPoints) && (timeStamp[endIdx] < endTime)) { endIdx++; }
+            if (endIdx >= numPoints) {
+                // later windows end later still, so none of them fit either
+                break;
+            }
+
+            // Slide the end of the window forward
+            for ( ; added <= endIdx; added++) {
+                double left  = leftVelocity[added];
+                double right = rightVelocity[added];
+                while ((maxLeftTail  > maxLeftHead)  && (leftVelocity[maxLeft[maxLeftTail-1]]    <= left))  { maxLeftTail--; }
+                maxLeft[maxLeftTail++] = added;
+                while ((minLeftTail  > minLeftHead)  && (leftVelocity[minLeft[minLeftTail-1]]    >= left))  { minLeftTail--; }
+                minLeft[minLeftTail++] = added;
+                while ((maxRightTail > maxRightHead) && (rightVelocity[maxRight[maxRightTail-1]] <= right)) { maxRightTail--; }
+                maxRight[maxRightTail++] = added;
+                while ((minRightTail > minRightHead) && (rightVelocity[minRight[minRightTail-1]] >= right)) { minRightTail--; }
+                minRight[minRightTail++] = added;
+            }
+
+            // Slide the start of the window forward
+            while (maxLeft[maxLeftHead]   < idx) { maxLeftHead++; }
+            while (minLeft[minLeftHead]   < idx) { minLeftHead++; }
+            while (maxRight[maxRightHead] < idx) { maxRightHead++; }
+            while (minRight[minRightHead] < idx) { minRightHead++; }
+
+            // The maxima start from 0.0, as they always have
+            double maxLeftVelocity  = Math.max(0.0, leftVelocity[maxLeft[maxLeftHead]]);
+            double minLeftVelocity  = leftVelocity[minLeft[minLeftHead]];
+            double maxRightVelocity = Math.max(0.0, rightVelocity[maxRight[maxRightHead]]);
+            double minRightVelocity = rightVelocity[minRight[minRightHead]];
+            if (((maxLeftVelocity - minLeftVelocity) < tolerance) &&
+                ((maxRightVelocity - minRightVelocity) < tolerance)) {
+                // Only the steady window needs its mean, sum it once in sample order
+                double sumLeftVelocity = 0.0;
+                double sumRightVelocity = 0.0;
+                for (int i = idx; i <= endIdx; i++) {
+                    sumLeftVelocity += leftVelocity[i];
+                    sumRightVelocity += rightVelocity[i];
+                }
+                steadyLeftVelocity  = sumLeftVelocity / (endIdx - idx + 1);
+                steadyRightVelocity = sumRightVelocity / (endIdx - idx + 1);
+                steadyIdx    = idx;
+                steadyEndIdx = endIdx;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the end of the ramp-up, the first sample where the ratio of the slower to the
+     * faster velocity is within rampTolerance of the steady-state ratio ratioV.
+     * @return - index of the sample, or -1 if there is none
+     */
+    public static int rampUpEnd(double[] leftVelocity, double[] rightVelocity, int numPoints, double ratioV, double rampTolerance) {
+        for (int idx = 0; idx < numPoints; idx++) {
+            if ((leftVelocity[idx] > 0.0) && (rightVelocity[idx] > 0.0)) {
+                double ratio = rightVelocity[idx]/leftVelocity[idx];
+                if (ratio > 1) { ratio = 1.0/ratio; }
+                if (ratio > (1-rampTolerance)*ratioV) {
+                    return idx;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,68 @@
+package calibration;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The per-profile work of the analyzers on one profile of the given number of points.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class AnalysisBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int rows;
+
+    CalibProfile   profile;
+    CalibrateOP    op    = new CalibrateOP();
+    CalibrateAccel accel = new CalibrateAccel();
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        profile = SyntheticLog.profile(rows, "LR", 1);
+    }
+
+    /**
+     * Velocity ratio integral of CalibrateOP, the profile is treated as valid.
+     */
+    @Benchmark
+    public double opIntegral() {
+        return op.analyzeOne(profile, null).integral;
+    }
+
+    /**
+     * Steady state and end of ramp up of CalibrateAccel.
+     */
+    @Benchmark
+    public int inflectionPoint() {
+        accel.inflectionPoint(profile);
+        return accel.rampUpEndIdx;
+    }
+
+    /**
+     * Order check of ProfileValidator on a profile that has not been checked.
+     */
+    @Benchmark
+    public int validate() {
+        ProfileValidator.scan(profile);
+        return profile.validity;
+    }
+}
@@ -0,0 +1,39 @@
+package calibration;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks with the GC profiler, so the allocation rate per operation is
+ * reported next to the throughput.
+ *
+ * Takes the usual JMH command line, e.g. to run only the parsing benchmarks on small files:
+ *
+ *      java -jar benchmarks/target/benchmarks.jar ParseBenchmark -p rows=1000,100000
+ */
+public class CalibrationBenchmarks {
+
+    /**
+     * Main method run at command line.
+     */
+    public static void main(String[] args) throws RunnerException {
+        CommandLineOptions commandLine;
+        try {
+            commandLine = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.out.println("BOO!! "+e.getMessage());
+            return;
+        }
+        Options options = new OptionsBuilder()
+            .parent(commandLine)
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,78 @@
+package calibration;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Reading a whole calibration data file with each of the readers.
+ * Repeated profiles run longer, so the files have up to 1.75 times the given rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ParseBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    long rows;
+
+    // rows in the shortest profiles, see CalibrationLogGenerator
+    @Param({"1000"})
+    int rowsPerProfile;
+
+    Path dataFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dataFile = Files.createTempFile("calib-bench-", ".txt");
+        CalibrationLogGenerator generator = new CalibrationLogGenerator();
+        generator.numPoints   = rowsPerProfile;
+        generator.numProfiles = Math.max(1, rows / rowsPerProfile);
+        generator.write(dataFile.toString());
+        // the readers show the file name on every read
+        Diagnostics.CONSOLE.level = Diagnostics.Level.ERROR;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(dataFile);
+    }
+
+    @Benchmark
+    public List<CalibProfile> readCalibrationDataFile() {
+        return CalibrationFileHandler.readCalibrationDataFile(dataFile.toString());
+    }
+
+    @Benchmark
+    public List<CalibProfile> readMapped() {
+        return MappedCalibrationReader.readCalibrationDataFile(dataFile.toString());
+    }
+
+    @Benchmark
+    public List<CalibProfile> readParallel() {
+        return ParallelCalibrationReader.readCalibrationDataFile(dataFile.toString());
+    }
+}
@@ -0,0 +1,66 @@
+package calibration;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Linear and quadratic fits of one noisy series.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RegressionBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int rows;
+
+    double[] x;
+    double[] y;
+    PolynomialFitter fitter = new PolynomialFitter(2);
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(1);
+        x = new double[rows];
+        y = new double[rows];
+        for (int idx = 0; idx < rows; idx++) {
+            x[idx] = idx * 0.01;
+            y[idx] = 3.0 + 0.5 * x[idx] + 0.02 * x[idx] * x[idx] + random.nextGaussian();
+        }
+    }
+
+    @Benchmark
+    public List<Double> linRegression() {
+        return LinearRegression.linRegression(x, y);
+    }
+
+    @Benchmark
+    public List<Double> polyRegression() {
+        return PolynomialRegression.polyRegression(x, y);
+    }
+
+    @Benchmark
+    public double[] polynomialFitter() {
+        fitter.fit(x, y, 0, rows);
+        return fitter.coefficients;
+    }
+}
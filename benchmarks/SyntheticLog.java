@@ -0,0 +1,46 @@
+package calibration;
+
+import java.util.Random;
+
+
+/**
+ * A profile for the benchmarks of the per-profile analysis, the same for every run.
+ * Data files are written by CalibrationLogGenerator.
+ *
+ * In each profile the leading side runs at the nominal power from the start and the other
+ * side ramps up to it over nearly the whole profile. The velocities are noisy until the
+ * last few percent of the profile, so the OP integral and the steady state search both
+ * have to look at (almost) every point.
+ */
+public class SyntheticLog {
+
+    static final double SAMPLE_MS = 10.0;       // time between points
+
+
+    /**
+     * Make a profile of the given number of points.
+     * @param numPoints - number of points
+     * @param sequence  - "LR" for the left side leading, "RL" for the right
+     * @param seed      - seed of the velocity noise
+     */
+    public static CalibProfile profile(int numPoints, String sequence, long seed) {
+        Random random = new Random(seed);
+        CalibColumns columns = new CalibColumns(numPoints);
+        double power = 0.4;
+        int leftEncoder  = 0;
+        int rightEncoder = 0;
+        int steadyIdx = (int) (0.97 * numPoints);
+        for (int idx = 0; idx < numPoints; idx++) {
+            double noise  = (idx < steadyIdx) ? 0.05 : 0.005;
+            double lead   = power + noise * random.nextDouble();
+            double follow = power * Math.min(1.0, (double) idx / steadyIdx) + noise * random.nextDouble();
+            double leftVelocity  = sequence.equals("LR") ? lead : follow;
+            double rightVelocity = sequence.equals("LR") ? follow : lead;
+            leftEncoder  += (int) (leftVelocity  * SAMPLE_MS);
+            rightEncoder += (int) (rightVelocity * SAMPLE_MS);
+            columns.add((idx + 1) * SAMPLE_MS, leftEncoder, rightEncoder, leftVelocity, rightVelocity);
+        }
+        return new CalibProfile(columns, power, 0.01, 12.5, sequence,
+                                leftEncoder / 10.0, rightEncoder / 10.0, 0.0, 0.0);
+    }
+}